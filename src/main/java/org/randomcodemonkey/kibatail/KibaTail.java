@@ -4,16 +4,31 @@ import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
 import java.io.IOException;
+import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.utils.URIBuilder;
 import org.randomcodemonkey.kibatail.client.KibaHttpClient;
+import org.randomcodemonkey.kibatail.daemon.DaemonToken;
+import org.randomcodemonkey.kibatail.daemon.Subscription;
+import org.randomcodemonkey.kibatail.daemon.TailDaemon;
 import org.randomcodemonkey.kibatail.request.LogRequest.BooleanFilter;
 import org.randomcodemonkey.kibatail.request.LogRequest.PhraseFilterMatch;
 import org.randomcodemonkey.kibatail.response.LogPrinter;
+import org.randomcodemonkey.kibatail.response.LogResponse;
+import org.randomcodemonkey.kibatail.response.OverloadController;
+import org.randomcodemonkey.kibatail.response.OverloadController.Mode;
+import org.randomcodemonkey.kibatail.response.RowCollapser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
@@ -22,6 +37,10 @@ public class KibaTail implements Runnable {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(KibaTail.class);
 
+  private static final int OUTPUT_BATCH_SIZE = 1000;
+
+  private static final long SHUTDOWN_TIMEOUT_MILLIS = 2000;
+
   @Parameter(
       names = {"--debug", "-d"},
       description =
@@ -39,8 +58,8 @@ public class KibaTail implements Runnable {
 
   @Parameter(
       names = {"--index", "-i"},
-      description = "Index pattern, for example 'application*'",
-      required = true)
+      description = "Index pattern, for example 'application*'. Required unless --daemon is given",
+      required = false)
   private String index;
 
   @Parameter(
@@ -51,9 +70,13 @@ public class KibaTail implements Runnable {
 
   @Parameter(
       names = {"--server", "-s"},
-      description = "URL for kibana server, for example 'http://example.com:5601'",
-      required = true)
-  private String server;
+      description =
+          "URL for kibana server, for example 'http://example.com:5601'. Several equivalent servers"
+              + " can be given as a comma-separated list or by repeating the option, in which case"
+              + " requests go to the fastest healthy server and slow requests are hedged to"
+              + " another. Required unless --daemon is given",
+      required = false)
+  private List<String> servers = new ArrayList<>();
 
   @Parameter(
       names = {"--user", "-u"},
@@ -79,19 +102,144 @@ public class KibaTail implements Runnable {
   private String fields =
       "log_level,service_name,thread_name,logger_name,-,message,stack_trace,kubernetes.container.name";
 
+  @Parameter(
+      names = {"--collapse", "-c"},
+      description =
+          "Collapse repeated log rows. Rows with the same collapse fields, ignoring numbers and"
+              + " identifiers, are printed once per collapse window followed by a 'xN' summary of"
+              + " the repeats",
+      required = false)
+  private boolean collapse = false;
+
+  @Parameter(
+      names = {"--collapse-fields"},
+      description = "Comma-separated list of fields used to detect repeated log rows",
+      required = false)
+  private String collapseFields = RowCollapser.DEFAULT_FIELDS;
+
+  @Parameter(
+      names = {"--collapse-window"},
+      description = "Length of the collapse window in seconds",
+      required = false)
+  private int collapseWindow = 10;
+
+  @Parameter(
+      names = {"--overload-mode"},
+      description =
+          "What to do when the output can not keep up and the buffered rows exceed"
+              + " --max-buffered-rows or --max-buffered-mb: 'block' pauses requests until the"
+              + " output has caught up, 'sample' keeps only a --sample-rate fraction of the rows"
+              + " and 'severity' keeps only rows with one of --keep-levels. The number of rows"
+              + " shed is reported to STDERR",
+      required = false)
+  private String overloadMode = "block";
+
+  @Parameter(
+      names = {"--max-buffered-rows"},
+      description = "Maximum number of rows buffered for output",
+      required = false)
+  private int maxBufferedRows = 10000;
+
+  @Parameter(
+      names = {"--max-buffered-mb"},
+      description = "Maximum estimated memory of rows buffered for output, in megabytes",
+      required = false)
+  private int maxBufferedMb = 64;
+
+  @Parameter(
+      names = {"--sample-rate"},
+      description = "Fraction of rows kept when over budget in 'sample' overload mode",
+      required = false)
+  private double sampleRate = 0.1;
+
+  @Parameter(
+      names = {"--keep-levels"},
+      description = "Comma-separated log levels kept when over budget in 'severity' overload mode",
+      required = false)
+  private String keepLevels = OverloadController.DEFAULT_KEEP_LEVELS;
+
+  @Parameter(
+      names = {"--daemon"},
+      description =
+          "Run as a shared tail daemon on --port. Clients attaching with --attach that tail the"
+              + " same servers and index with the same credentials and match patterns share one"
+              + " upstream query, so the Kibana load does not grow with the number of clients. Only"
+              + " clients that can read --token-file can attach",
+      required = false)
+  private boolean daemon = false;
+
+  @Parameter(
+      names = {"--attach", "-a"},
+      description =
+          "Tail through the daemon running on --port instead of querying the servers directly. Only"
+              + " --server, --index, --user, --password, --match and --fields apply",
+      required = false)
+  private boolean attach = false;
+
+  @Parameter(
+      names = {"--port"},
+      description = "Local port of the tail daemon",
+      required = false)
+  private int port = TailDaemon.DEFAULT_PORT;
+
+  @Parameter(
+      names = {"--daemon-buffer-rows"},
+      description = "Number of rows the tail daemon keeps for its clients per upstream query",
+      required = false)
+  private int daemonBufferRows = 10000;
+
+  @Parameter(
+      names = {"--token-file"},
+      description =
+          "File holding the token of the tail daemon. The daemon writes a new token to it readable"
+              + " by its owner only, clients attaching need to be able to read it. Defaults to"
+              + " ~/.kibatail/daemon-<port>.token",
+      required = false)
+  private String tokenFile;
+
   private AtomicBoolean running = new AtomicBoolean();
 
   @Override
   public void run() {
     if (debug) {
       System.err.println("Enable debug logging");
-      MDC.put("log-level", "DEBUG");
+      MDC.put(LogbackConfigurator.MDC_KEY, "DEBUG");
     }
     this.running.set(true);
 
+    if (daemon) {
+      runDaemon();
+      return;
+    }
+    if (index == null || servers.isEmpty()) {
+      throw new ParameterException("The following options are required: --index, --server");
+    }
+    if (attach) {
+      runAttached();
+      return;
+    }
+
+    RowCollapser collapser = null;
+    if (collapse) {
+      LOGGER.info("Collapse repeated rows by {} over {}s", collapseFields, collapseWindow);
+      collapser =
+          new RowCollapser(List.of(collapseFields.split(",")), Duration.ofSeconds(collapseWindow));
+    }
+    LogPrinter printer = new LogPrinter(fields, collapser);
+
+    OverloadController overload =
+        new OverloadController(
+                Mode.parse(overloadMode), maxBufferedRows, maxBufferedMb * 1024L * 1024L)
+            .setSampleRate(sampleRate)
+            .setKeepLevels(keepLevels);
+
     try {
-      LOGGER.info("Create new client for server {}", server);
-      KibaHttpClient client = new KibaHttpClient(new URIBuilder(server).build(), index, 60);
+      LOGGER.info("Create new client for servers {}", servers);
+      List<URI> uris = new ArrayList<>();
+      for (String server : servers) {
+        uris.add(new URIBuilder(server).build());
+      }
+      KibaHttpClient client = new KibaHttpClient(uris, index, 60);
 
       if (user != null && password != null) {
         LOGGER.info("Authenticating as {}", user);
@@ -99,6 +247,11 @@ public class KibaTail implements Runnable {
         client.setPassword(password);
       }
 
+      client.setSchema(printer.getSchema().with(overload.getFields()));
+      if (client.getRequest().getSize() > maxBufferedRows) {
+        client.getRequest().setSize(maxBufferedRows);
+      }
+
       for (String pattern : patterns) {
         String[] parts = pattern.split(":", 2);
         if (parts.length == 2) {
@@ -112,17 +265,48 @@ public class KibaTail implements Runnable {
         }
       }
 
-      LogPrinter printer = new LogPrinter(fields);
+      // send the first request while the output is set up
+      FutureTask<LogResponse> firstRequest = new FutureTask<>(client::executeRequest);
+      Thread request = new Thread(firstRequest, "kibatail-first-request");
+      request.setDaemon(true);
+      request.start();
+
+      Thread output = new Thread(() -> writeOutput(printer, overload), "kibatail-output");
+      output.setDaemon(true);
+      output.start();
+      Runtime.getRuntime()
+          .addShutdownHook(
+              new Thread(() -> finishOutput(printer, output), "kibatail-shutdown"));
 
       LOGGER.info("Start reading log data");
+      long reportedShed = 0;
+      long reportedBlockedMillis = 0;
+      Future<LogResponse> pending = firstRequest;
       while (this.running.get()) {
         try {
-          printer.print(client.executeRequest());
+          LogResponse response = pending != null ? await(pending) : client.executeRequest();
+          overload.offer(response.getRows());
+          if (overload.getShed() > reportedShed) {
+            LOGGER.warn(
+                "Output can not keep up, shed {} rows ({} in total)",
+                overload.getShed() - reportedShed,
+                overload.getShed());
+            reportedShed = overload.getShed();
+          }
+          if (overload.getBlockedMillis() > reportedBlockedMillis) {
+            LOGGER.warn(
+                "Output can not keep up, requests paused for {} ms",
+                overload.getBlockedMillis() - reportedBlockedMillis);
+            reportedBlockedMillis = overload.getBlockedMillis();
+          }
+        } catch (InterruptedException e) {
+          throw new IllegalStateException("Interrupted while waiting for output");
         } catch (ClientProtocolException e) {
           LOGGER.warn("Request failure: {}", e.getMessage());
         } catch (IOException e) {
           LOGGER.warn("Request failure: {}", e.getMessage());
         } finally {
+          pending = null;
           try {
             Thread.sleep(1000);
           } catch (InterruptedException e) {
@@ -136,11 +320,81 @@ public class KibaTail implements Runnable {
     }
   }
 
+  private void runDaemon() {
+    try {
+      TailDaemon tailDaemon = new TailDaemon(port, daemonBufferRows, tokenPath());
+      tailDaemon.run();
+    } catch (IOException e) {
+      throw new IllegalStateException(
+          "Can not start tail daemon on port " + port + ": " + e.getMessage());
+    }
+  }
+
+  private Path tokenPath() {
+    return tokenFile != null ? Paths.get(tokenFile) : DaemonToken.defaultFile(port);
+  }
+
+  private void runAttached() {
+    Subscription subscription =
+        new Subscription()
+            .setServers(servers)
+            .setIndex(index)
+            .setUser(user)
+            .setPassword(password)
+            .setPatterns(patterns)
+            .setFields(fields);
+    LOGGER.info("Attach to tail daemon on port {}", port);
+    try {
+      TailDaemon.attach(port, tokenPath(), subscription, System.out);
+    } catch (IOException e) {
+      throw new IllegalStateException(
+          "Can not attach to tail daemon on port " + port + ": " + e.getMessage());
+    }
+  }
+
+  private static LogResponse await(Future<LogResponse> request)
+      throws IOException, InterruptedException {
+    try {
+      return request.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IllegalStateException("Request failed", e.getCause());
+    }
+  }
+
+  private void writeOutput(LogPrinter printer, OverloadController overload) {
+    try {
+      while (this.running.get() || overload.size() > 0) {
+        // printing an empty batch still prints any due summaries of collapsed rows
+        printer.print(overload.take(OUTPUT_BATCH_SIZE, 1, TimeUnit.SECONDS));
+      }
+    } catch (InterruptedException e) {
+      LOGGER.warn("Interrupted while waiting for rows to print");
+    }
+  }
+
+  /** Print what is still buffered and any pending repeat counts before the JVM exits */
+  private void finishOutput(LogPrinter printer, Thread output) {
+    shutdown();
+    try {
+      output.join(SHUTDOWN_TIMEOUT_MILLIS);
+    } catch (InterruptedException e) {
+      LOGGER.warn("Interrupted while waiting for rows to print");
+    }
+    printer.flush();
+  }
+
   public void shutdown() {
     this.running.set(false);
   }
 
   public static void main(String[] args) {
+    // load the HTTP and JSON classes while the arguments are parsed and the client is set up
+    Thread preload = new Thread(KibaHttpClient::preload, "kibatail-preload");
+    preload.setDaemon(true);
+    preload.start();
     try {
       KibaTail tail = new KibaTail();
       JCommander commander = JCommander.newBuilder().addObject(tail).build();
@@ -0,0 +1,71 @@
+package org.randomcodemonkey.kibatail;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.spi.Configurator;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.turbo.DynamicThresholdFilter;
+import ch.qos.logback.classic.turbo.MDCValueLevelPair;
+import ch.qos.logback.core.ConsoleAppender;
+import ch.qos.logback.core.spi.ContextAwareBase;
+import org.slf4j.Logger;
+
+/**
+ * Programmatic logback configuration, loaded by logback through the service loader when no
+ * configuration file is present.
+ *
+ * <p>Configuring logback in code avoids loading and running the XML configurator on every start.
+ * All internal logging is written to STDERR at the level given in the 'log-level' MDC key, or at
+ * the level of the LOG_LEVEL system property or environment variable, or at WARN. A configuration
+ * file given with -Dlogback.configurationFile still takes precedence.
+ */
+public class LogbackConfigurator extends ContextAwareBase implements Configurator {
+
+  public static final String MDC_KEY = "log-level";
+
+  private static final String PATTERN =
+      "%d{HH:mm:ss.SSS} [%thread] %-5level %logger{36} - %msg%n";
+
+  private static final Level[] LEVELS = {
+    Level.ERROR, Level.WARN, Level.INFO, Level.DEBUG, Level.TRACE
+  };
+
+  @Override
+  public void configure(LoggerContext context) {
+    PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+    encoder.setContext(context);
+    encoder.setPattern(PATTERN);
+    encoder.start();
+
+    ConsoleAppender<ILoggingEvent> appender = new ConsoleAppender<>();
+    appender.setContext(context);
+    appender.setName("STDERR");
+    appender.setTarget("System.err");
+    appender.setEncoder(encoder);
+    appender.start();
+
+    // keep root at TRACE so the DynamicThresholdFilter works
+    ch.qos.logback.classic.Logger root = context.getLogger(Logger.ROOT_LOGGER_NAME);
+    root.setLevel(Level.TRACE);
+    root.addAppender(appender);
+
+    DynamicThresholdFilter filter = new DynamicThresholdFilter();
+    filter.setContext(context);
+    filter.setKey(MDC_KEY);
+    filter.setDefaultThreshold(Level.toLevel(defaultLevel(), Level.WARN));
+    for (Level level : LEVELS) {
+      MDCValueLevelPair pair = new MDCValueLevelPair();
+      pair.setValue(level.toString());
+      pair.setLevel(level);
+      filter.addMDCValueLevelPair(pair);
+    }
+    filter.start();
+    context.addTurboFilter(filter);
+  }
+
+  private static String defaultLevel() {
+    String level = System.getProperty("LOG_LEVEL");
+    return level != null ? level : System.getenv("LOG_LEVEL");
+  }
+}
@@ -0,0 +1,140 @@
+package org.randomcodemonkey.kibatail.client;
+
+import java.net.URI;
+import java.util.Arrays;
+
+/**
+ * A single Kibana search endpoint together with its observed health.
+ *
+ * <p>The latencies of the most recent successful requests are kept for choosing the fastest
+ * endpoint and for deciding when a hedged request should be sent. An endpoint that fails a number
+ * of times in a row is ejected, and becomes eligible again for a single trial request after the
+ * re-check interval has elapsed.
+ */
+public class Endpoint {
+
+  static final int LATENCY_SAMPLES = 64;
+
+  static final int MIN_SAMPLES = 5;
+
+  static final int DEFAULT_EJECT_AFTER_FAILURES = 3;
+
+  static final long DEFAULT_RECHECK_INTERVAL_MILLIS = 30_000;
+
+  private final URI uri;
+
+  private final int ejectAfterFailures;
+
+  private final long recheckIntervalNanos;
+
+  private final long[] latencies = new long[LATENCY_SAMPLES];
+
+  private int samples = 0;
+
+  private int next = 0;
+
+  private long abandonedNanos = -1;
+
+  private int consecutiveFailures = 0;
+
+  private long ejectedAt = -1;
+
+  public Endpoint(URI uri) {
+    this(uri, DEFAULT_EJECT_AFTER_FAILURES, DEFAULT_RECHECK_INTERVAL_MILLIS);
+  }
+
+  Endpoint(URI uri, int ejectAfterFailures, long recheckIntervalMillis) {
+    this.uri = uri;
+    this.ejectAfterFailures = ejectAfterFailures;
+    this.recheckIntervalNanos = recheckIntervalMillis * 1_000_000L;
+  }
+
+  public URI getUri() {
+    return uri;
+  }
+
+  /**
+   * Record a successful request
+   *
+   * @param latencyNanos Time taken by the request
+   */
+  public synchronized void success(long latencyNanos) {
+    addLatency(latencyNanos);
+    abandonedNanos = -1;
+    consecutiveFailures = 0;
+    ejectedAt = -1;
+  }
+
+  /**
+   * Record a request that was abandoned because another endpoint answered first. The endpoint
+   * would have taken at least the time waited, but it may have been sent late as a hedge and
+   * abandoned moments later, so the time waited is not a latency sample. It is kept as a lower
+   * bound that can only raise the {@link #estimatedLatency()} until the next successful request.
+   *
+   * @param waitedNanos Time waited before the request was abandoned
+   */
+  public synchronized void abandoned(long waitedNanos) {
+    abandonedNanos = Math.max(abandonedNanos, waitedNanos);
+  }
+
+  private void addLatency(long latencyNanos) {
+    latencies[next] = latencyNanos;
+    next = (next + 1) % latencies.length;
+    samples = Math.min(samples + 1, latencies.length);
+  }
+
+  /** Record a failed request, ejecting the endpoint if it has failed too many times in a row */
+  public synchronized void failure() {
+    consecutiveFailures++;
+    if (consecutiveFailures >= ejectAfterFailures) {
+      ejectedAt = System.nanoTime();
+    }
+  }
+
+  /**
+   * @return true if the endpoint is not ejected, or the re-check interval of an ejected endpoint
+   *     has elapsed
+   */
+  public synchronized boolean isAvailable() {
+    return ejectedAt < 0 || System.nanoTime() - ejectedAt >= recheckIntervalNanos;
+  }
+
+  synchronized int getConsecutiveFailures() {
+    return consecutiveFailures;
+  }
+
+  /** @return true if the endpoint has been ejected because of repeated failures */
+  public synchronized boolean isEjected() {
+    return ejectedAt >= 0;
+  }
+
+  /**
+   * @param percentile Percentile between 0 and 100
+   * @return the given latency percentile in nanoseconds, or -1 if not enough requests have been
+   *     observed yet
+   */
+  public synchronized long latencyPercentile(int percentile) {
+    return samples < MIN_SAMPLES ? -1 : percentile(percentile);
+  }
+
+  /**
+   * @return the median latency in nanoseconds over however many requests have been observed,
+   *     raised to the time waited for an abandoned request since the last successful one, or -1 if
+   *     there is neither
+   */
+  public synchronized long estimatedLatency() {
+    return Math.max(samples == 0 ? -1 : percentile(50), abandonedNanos);
+  }
+
+  private long percentile(int percentile) {
+    long[] sorted = Arrays.copyOf(latencies, samples);
+    Arrays.sort(sorted);
+    int idx = (int) Math.ceil(percentile / 100.0 * samples) - 1;
+    return sorted[Math.max(0, Math.min(idx, samples - 1))];
+  }
+
+  @Override
+  public String toString() {
+    return uri.getScheme() + "://" + uri.getAuthority();
+  }
+}
@@ -1,30 +1,71 @@
 package org.randomcodemonkey.kibatail.client;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.HttpHost;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.LayeredConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
 import org.json.JSONObject;
 import org.randomcodemonkey.kibatail.request.LogRequest;
 import org.randomcodemonkey.kibatail.response.LogResponse;
+import org.randomcodemonkey.kibatail.response.LogRow;
+import org.randomcodemonkey.kibatail.response.RowSchema;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class KibaHttpClient {
+/**
+ * Client for the Kibana search API.
+ *
+ * <p>The client may be given several equivalent servers. Each request is sent to the fastest
+ * available server, and if it has not answered within the 95th percentile of its observed latency a
+ * hedged duplicate is sent to the next fastest server. Whichever successful answer arrives first is
+ * used.
+ */
+public class KibaHttpClient implements Closeable {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(KibaHttpClient.class);
 
-  private URI server;
+  private static final int REQUEST_TIMEOUT_MILLIS = 30000;
+
+  /** Hedge delay used until enough latency samples of an endpoint have been collected */
+  private static final long DEFAULT_HEDGE_DELAY_MILLIS = 2000;
+
+  private static final long MIN_HEDGE_DELAY_MILLIS = 50;
+
+  private final List<Endpoint> endpoints = new ArrayList<>();
 
   private String user;
 
@@ -36,22 +77,79 @@ public class KibaHttpClient {
 
   private final LogRequest request;
 
+  private volatile RowSchema schema = RowSchema.parse(null);
+
   private final CloseableHttpClient httpClient;
 
+  private ExecutorService executor;
+
   public KibaHttpClient(URI server, String indexPattern, int initialLookBackSeconds)
       throws URISyntaxException {
-    this.server =
-        new URIBuilder(server)
-            .setPathSegments("elasticsearch", indexPattern, "_search")
-            .addParameter("rest_total_hits_as_int", "true")
-            .addParameter("ignore_unavailable", "true")
-            .addParameter("ignore_throttled", "true")
-            .addParameter("timeout", "30000ms")
-            .build();
-    this.httpClient = HttpClients.createDefault();
+    this(List.of(server), indexPattern, initialLookBackSeconds);
+  }
+
+  public KibaHttpClient(List<URI> servers, String indexPattern, int initialLookBackSeconds)
+      throws URISyntaxException {
+    if (servers.isEmpty()) {
+      throw new IllegalArgumentException("At least one server is required");
+    }
+    for (URI server : servers) {
+      this.endpoints.add(
+          new Endpoint(
+              new URIBuilder(server)
+                  .setPathSegments("elasticsearch", indexPattern, "_search")
+                  .addParameter("rest_total_hits_as_int", "true")
+                  .addParameter("ignore_unavailable", "true")
+                  .addParameter("ignore_throttled", "true")
+                  .addParameter("timeout", REQUEST_TIMEOUT_MILLIS + "ms")
+                  .build()));
+    }
+    DeferredTlsSocketFactory tlsSocketFactory = new DeferredTlsSocketFactory();
+    if (servers.stream().anyMatch(s -> "https".equalsIgnoreCase(s.getScheme()))) {
+      // load the trust store in the background while the rest of the client is set up
+      tlsSocketFactory.start();
+    }
+    this.httpClient = createHttpClient(tlsSocketFactory);
     this.request = new LogRequest(initialLookBackSeconds);
   }
 
+  /**
+   * Load and initialize the classes needed for sending a request and parsing its response. Meant to
+   * be called on a background thread at startup, so that class loading overlaps with the rest of
+   * the startup instead of delaying the first request.
+   */
+  public static void preload() {
+    try {
+      createHttpClient(new DeferredTlsSocketFactory()).close();
+      new HttpPost("http://localhost/").setEntity(new StringEntity("{}"));
+      new JSONObject("{}");
+      ZonedDateTime.parse("2000-01-01T00:00:00Z");
+      for (Class<?> type : List.of(LogResponse.class, LogRow.class, RowSchema.class)) {
+        Class.forName(type.getName(), true, type.getClassLoader());
+      }
+    } catch (IOException | ClassNotFoundException e) {
+      LOGGER.debug("Preloading failed: {}", e.getMessage());
+    }
+  }
+
+  private static CloseableHttpClient createHttpClient(LayeredConnectionSocketFactory tls) {
+    PoolingHttpClientConnectionManager connectionManager =
+        new PoolingHttpClientConnectionManager(
+            RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", tls)
+                .build());
+    connectionManager.setDefaultMaxPerRoute(4);
+    return HttpClients.custom()
+        .setConnectionManager(connectionManager)
+        .setDefaultRequestConfig(
+            RequestConfig.custom()
+                .setConnectTimeout(REQUEST_TIMEOUT_MILLIS)
+                .setSocketTimeout(REQUEST_TIMEOUT_MILLIS)
+                .build())
+        .build();
+  }
+
   public void setUser(String user) {
     this.user = user;
   }
@@ -60,10 +158,34 @@ public class KibaHttpClient {
     this.password = password;
   }
 
+  /**
+   * Set the schema of the rows parsed out of responses. Only the fields of the schema are retained.
+   *
+   * @param schema Schema for parsed rows
+   */
+  public void setSchema(RowSchema schema) {
+    this.schema = schema;
+  }
+
   public LogRequest getRequest() {
     return request;
   }
 
+  public List<Endpoint> getEndpoints() {
+    return endpoints;
+  }
+
+  /** Close the connections to the servers and stop the threads used for hedged requests */
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+    }
+    httpClient.close();
+  }
+
   public LogResponse executeRequest() throws ClientProtocolException, IOException {
     if (user != null && password != null && auth == null) {
       auth =
@@ -72,47 +194,196 @@ public class KibaHttpClient {
                   .encodeToString((user + ":" + password).getBytes(StandardCharsets.UTF_8));
     }
 
-    HttpPost post = new HttpPost(server);
-    if (auth != null) {
-      post.addHeader("Authorization", auth);
-    }
-    post.addHeader("kbn-version", kbnVersion);
     String requestData = request.toJson().toString();
 
     if (LOGGER.isTraceEnabled()) {
       LOGGER.trace("Send: {}", requestData);
     }
     LOGGER.info("SEND {}", requestData);
-    post.setEntity(new StringEntity(requestData));
 
     LogResponse logResponse = null;
-    try (CloseableHttpResponse response = httpClient.execute(post)) {
-      String body = EntityUtils.toString(response.getEntity());
+    try {
+      Result result = execute(requestData);
       if (LOGGER.isTraceEnabled()) {
-        LOGGER.trace("Received: {}", body);
+        LOGGER.trace("Received from {}: {}", result.endpoint, result.body);
       }
-      if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
-        JSONObject json = new JSONObject(body);
+      if (result.statusCode == HttpStatus.SC_OK) {
+        JSONObject json = new JSONObject(result.body);
         if (isValid(json)) {
-          logResponse = LogResponse.ok(json, request.getEndOfPreviousRequest());
+          logResponse =
+              LogResponse.ok(
+                  json,
+                  request.getEndOfPreviousRequest(),
+                  request.getIdsAtEndOfPreviousRequest(),
+                  schema);
         }
       }
       if (logResponse == null) {
-        LOGGER.info("Invalid response {}: {}", response.getStatusLine(), body);
-        logResponse = LogResponse.error(response.getStatusLine().getStatusCode(), body);
+        LOGGER.info("Invalid response {}: {}", result.statusLine, result.body);
+        logResponse = LogResponse.error(result.statusCode, result.body);
       }
       return logResponse;
     } finally {
-      if (logResponse != null) {
-        logResponse
-            .getLastResponseTime()
-            .ifPresentOrElse(c -> request.updateRange(c), () -> request.updateRange());
+      if (logResponse != null && logResponse.getLastResponseTime().isPresent()) {
+        request.updateRange(
+            logResponse.getLastResponseTime().get(), logResponse.getIdsAtLastResponseTime());
       } else {
         request.updateRange();
       }
     }
   }
 
+  /**
+   * Send the request to the fastest available endpoint, hedging it to a second endpoint if the
+   * first one is slower than usual and failing over to the next endpoint if it fails
+   */
+  private Result execute(String requestData) throws IOException {
+    List<Endpoint> candidates = candidates();
+    if (candidates.size() == 1) {
+      Endpoint endpoint = candidates.get(0);
+      return send(endpoint, newPost(endpoint, requestData));
+    }
+
+    CompletionService<Result> completion = new ExecutorCompletionService<>(executor());
+    List<HttpPost> posts = new ArrayList<>();
+    Result unsuccessful = null;
+    IOException failure = null;
+    try {
+      Endpoint primary = candidates.get(0);
+      submit(completion, posts, primary, requestData);
+      int next = 1;
+      int outstanding = 1;
+
+      Future<Result> done = completion.poll(hedgeDelay(primary), TimeUnit.MILLISECONDS);
+      if (done == null) {
+        LOGGER.debug("{} is slow, sending hedged request to {}", primary, candidates.get(next));
+        submit(completion, posts, candidates.get(next++), requestData);
+        outstanding++;
+      }
+
+      while (outstanding > 0) {
+        if (done == null) {
+          done = completion.take();
+        }
+        outstanding--;
+        try {
+          Result result = done.get();
+          if (!result.isRetryable()) {
+            return result;
+          }
+          unsuccessful = result;
+        } catch (ExecutionException e) {
+          failure =
+              e.getCause() instanceof IOException
+                  ? (IOException) e.getCause()
+                  : new IOException(e.getCause());
+        }
+        done = null;
+        if (outstanding == 0 && next < candidates.size()) {
+          LOGGER.debug("Request failed, failing over to {}", candidates.get(next));
+          submit(completion, posts, candidates.get(next++), requestData);
+          outstanding++;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for response");
+    } finally {
+      // abort whichever requests are still running, aborting a completed request is a no-op
+      posts.forEach(HttpPost::abort);
+    }
+    if (unsuccessful != null) {
+      return unsuccessful;
+    }
+    throw failure;
+  }
+
+  private void submit(
+      CompletionService<Result> completion,
+      List<HttpPost> posts,
+      Endpoint endpoint,
+      String requestData)
+      throws IOException {
+    HttpPost post = newPost(endpoint, requestData);
+    posts.add(post);
+    completion.submit(() -> send(endpoint, post));
+  }
+
+  private HttpPost newPost(Endpoint endpoint, String requestData) throws IOException {
+    HttpPost post = new HttpPost(endpoint.getUri());
+    if (auth != null) {
+      post.addHeader("Authorization", auth);
+    }
+    post.addHeader("kbn-version", kbnVersion);
+    post.setEntity(new StringEntity(requestData));
+    return post;
+  }
+
+  private Result send(Endpoint endpoint, HttpPost post) throws IOException {
+    long start = System.nanoTime();
+    try (CloseableHttpResponse response = httpClient.execute(post)) {
+      Result result =
+          new Result(
+              endpoint,
+              response.getStatusLine().getStatusCode(),
+              response.getStatusLine().toString(),
+              EntityUtils.toString(response.getEntity()));
+      if (result.isRetryable()) {
+        endpoint.failure();
+      } else {
+        endpoint.success(System.nanoTime() - start);
+      }
+      return result;
+    } catch (IOException e) {
+      if (post.isAborted()) {
+        endpoint.abandoned(System.nanoTime() - start);
+      } else {
+        LOGGER.debug("Request to {} failed: {}", endpoint, e.getMessage());
+        endpoint.failure();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * @return available endpoints ordered by their median latency, endpoints without any observed
+   *     latency first, or all endpoints if every one of them has been ejected
+   */
+  private List<Endpoint> candidates() {
+    List<Endpoint> available = new ArrayList<>();
+    for (Endpoint endpoint : endpoints) {
+      if (endpoint.isAvailable()) {
+        available.add(endpoint);
+      }
+    }
+    if (available.isEmpty()) {
+      available.addAll(endpoints);
+    }
+    available.sort(Comparator.comparingLong(Endpoint::estimatedLatency));
+    return available;
+  }
+
+  private long hedgeDelay(Endpoint endpoint) {
+    long p95 = endpoint.latencyPercentile(95);
+    if (p95 < 0) {
+      return DEFAULT_HEDGE_DELAY_MILLIS;
+    }
+    return Math.max(MIN_HEDGE_DELAY_MILLIS, TimeUnit.NANOSECONDS.toMillis(p95));
+  }
+
+  private synchronized ExecutorService executor() {
+    if (executor == null) {
+      executor =
+          Executors.newCachedThreadPool(
+              r -> {
+                Thread t = new Thread(r, "kibatail-http");
+                t.setDaemon(true);
+                return t;
+              });
+    }
+    return executor;
+  }
+
   private boolean isValid(JSONObject json) {
     JSONObject shards = json.optJSONObject("_shards");
     if (shards == null) {
@@ -120,4 +391,71 @@ public class KibaHttpClient {
     }
     return shards.optInt("failed") == 0;
   }
+
+  /**
+   * TLS socket factory which creates the actual factory, and loads the trust store, only when it is
+   * started or first needed, so that plain HTTP servers do not pay for TLS initialization
+   */
+  private static class DeferredTlsSocketFactory implements LayeredConnectionSocketFactory {
+
+    private CompletableFuture<SSLConnectionSocketFactory> factory;
+
+    private synchronized CompletableFuture<SSLConnectionSocketFactory> start() {
+      if (factory == null) {
+        factory = CompletableFuture.supplyAsync(SSLConnectionSocketFactory::getSocketFactory);
+      }
+      return factory;
+    }
+
+    private SSLConnectionSocketFactory delegate() {
+      return start().join();
+    }
+
+    @Override
+    public Socket createSocket(HttpContext context) throws IOException {
+      return delegate().createSocket(context);
+    }
+
+    @Override
+    public Socket connectSocket(
+        int connectTimeout,
+        Socket socket,
+        HttpHost host,
+        InetSocketAddress remoteAddress,
+        InetSocketAddress localAddress,
+        HttpContext context)
+        throws IOException {
+      return delegate()
+          .connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+    }
+
+    @Override
+    public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context)
+        throws IOException {
+      return delegate().createLayeredSocket(socket, target, port, context);
+    }
+  }
+
+  private static class Result {
+
+    private final Endpoint endpoint;
+
+    private final int statusCode;
+
+    private final String statusLine;
+
+    private final String body;
+
+    private Result(Endpoint endpoint, int statusCode, String statusLine, String body) {
+      this.endpoint = endpoint;
+      this.statusCode = statusCode;
+      this.statusLine = statusLine;
+      this.body = body;
+    }
+
+    /** @return true if another endpoint might give a better answer */
+    private boolean isRetryable() {
+      return statusCode >= HttpStatus.SC_INTERNAL_SERVER_ERROR;
+    }
+  }
 }
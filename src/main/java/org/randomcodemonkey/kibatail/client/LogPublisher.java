@@ -0,0 +1,282 @@
+package org.randomcodemonkey.kibatail.client;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.randomcodemonkey.kibatail.request.LogRequest.SortDefinition;
+import org.randomcodemonkey.kibatail.response.LogResponse;
+import org.randomcodemonkey.kibatail.response.LogRow;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publishes the log rows tailed with a {@link KibaHttpClient} to a {@link Flow.Subscriber}.
+ *
+ * <p>Polling is driven by the demand of the subscriber. Requests are only made while the subscriber
+ * has outstanding demand, and the page size of each request is limited to that demand. Rows are
+ * requested oldest first, so that a page smaller than the number of available rows does not skip
+ * any rows. The start of the time range of a request is rounded down to the millisecond, so the
+ * already delivered rows of that millisecond are returned again. They are requested on top of
+ * the page size, and rows sharing the timestamp of the last delivered row are told apart by their
+ * id. While the subscriber is catching up requests are made back to back, once it has caught up
+ * they are made once per poll interval.
+ *
+ * <p>Failed requests are logged and retried after the poll interval. The publisher is unicast, it
+ * can be subscribed to once, either for single rows or, with {@link #batches()}, for the rows of
+ * each request as a list.
+ *
+ * <pre>
+ * KibaHttpClient client = new KibaHttpClient(server, "application*", 60);
+ * new LogPublisher(client).subscribe(subscriber);
+ * </pre>
+ */
+public class LogPublisher implements Flow.Publisher<LogRow> {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(LogPublisher.class);
+
+  private final KibaHttpClient client;
+
+  private final AtomicBoolean subscribed = new AtomicBoolean();
+
+  private Duration pollInterval = Duration.ofSeconds(1);
+
+  private int maxPageSize = 500;
+
+  public LogPublisher(KibaHttpClient client) {
+    this.client = client;
+    client.getRequest().setSort(new SortDefinition().setOrder("asc"));
+  }
+
+  /**
+   * Set the time between requests once the subscriber has caught up
+   *
+   * @param pollInterval Time between requests
+   */
+  public LogPublisher setPollInterval(Duration pollInterval) {
+    this.pollInterval = pollInterval;
+    return this;
+  }
+
+  /**
+   * Set the maximum number of new rows requested at once. The rows of the last delivered
+   * millisecond, which are returned again, come on top of this.
+   *
+   * @param maxPageSize Maximum page size
+   */
+  public LogPublisher setMaxPageSize(int maxPageSize) {
+    this.maxPageSize = maxPageSize;
+    return this;
+  }
+
+  @Override
+  public void subscribe(Flow.Subscriber<? super LogRow> subscriber) {
+    start(
+        subscriber,
+        new PollingSubscription<LogRow>(subscriber) {
+          @Override
+          int pageSize(long demand) {
+            return (int) Math.min(demand, maxPageSize);
+          }
+
+          @Override
+          void deliver(Collection<LogRow> rows) {
+            for (LogRow row : rows) {
+              if (isCancelled()) {
+                return;
+              }
+              demand.decrementAndGet();
+              subscriber.onNext(row);
+            }
+          }
+        });
+  }
+
+  /**
+   * @return a publisher of the rows of each request as a list, each list counting as one towards
+   *     the demand of the subscriber
+   */
+  public Flow.Publisher<List<LogRow>> batches() {
+    return subscriber ->
+        start(
+            subscriber,
+            new PollingSubscription<List<LogRow>>(subscriber) {
+              @Override
+              int pageSize(long demand) {
+                return maxPageSize;
+              }
+
+              @Override
+              void deliver(Collection<LogRow> rows) {
+                if (!rows.isEmpty()) {
+                  demand.decrementAndGet();
+                  subscriber.onNext(new ArrayList<>(rows));
+                }
+              }
+            });
+  }
+
+  private void start(Flow.Subscriber<?> subscriber, PollingSubscription<?> subscription) {
+    if (subscriber == null) {
+      throw new NullPointerException("Subscriber must not be null");
+    }
+    if (!subscribed.compareAndSet(false, true)) {
+      subscriber.onSubscribe(
+          new Flow.Subscription() {
+            @Override
+            public void request(long n) {}
+
+            @Override
+            public void cancel() {}
+          });
+      subscriber.onError(new IllegalStateException("LogPublisher can only be subscribed to once"));
+      return;
+    }
+    subscriber.onSubscribe(subscription);
+  }
+
+  /** Polls for rows on its own thread while the subscriber has demand */
+  private abstract class PollingSubscription<T> implements Flow.Subscription {
+
+    private final Flow.Subscriber<? super T> subscriber;
+
+    private final ScheduledExecutorService executor;
+
+    final AtomicLong demand = new AtomicLong();
+
+    private final AtomicBoolean polling = new AtomicBoolean();
+
+    private volatile boolean cancelled = false;
+
+    /** The millisecond of the last delivered row */
+    private long boundaryMillis = -1;
+
+    /** The number of delivered rows within boundaryMillis, these are returned again */
+    private int boundaryRows = 0;
+
+    private PollingSubscription(Flow.Subscriber<? super T> subscriber) {
+      this.subscriber = subscriber;
+      ScheduledThreadPoolExecutor executor =
+          new ScheduledThreadPoolExecutor(
+              1,
+              r -> {
+                Thread t = new Thread(r, "kibatail-publisher");
+                t.setDaemon(true);
+                return t;
+              });
+      executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+      this.executor = executor;
+    }
+
+    /**
+     * @return the number of new rows to request given the outstanding demand, not counting the
+     *     rows returned again
+     */
+    abstract int pageSize(long demand);
+
+    /** Deliver the rows of a request to the subscriber, decrementing the demand */
+    abstract void deliver(Collection<LogRow> rows);
+
+    boolean isCancelled() {
+      return cancelled;
+    }
+
+    @Override
+    public void request(long n) {
+      if (cancelled) {
+        return;
+      }
+      if (n <= 0) {
+        submit(
+            () -> {
+              if (!cancelled) {
+                cancel();
+                subscriber.onError(
+                    new IllegalArgumentException("Requested demand must be positive, was " + n));
+              }
+            },
+            0);
+        return;
+      }
+      demand.accumulateAndGet(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+      if (polling.compareAndSet(false, true)) {
+        submit(this::poll, 0);
+      }
+    }
+
+    @Override
+    public void cancel() {
+      cancelled = true;
+      executor.shutdown();
+    }
+
+    private void poll() {
+      if (cancelled) {
+        return;
+      }
+      long delay = 0;
+      try {
+        int overlap = boundaryRows;
+        // the overlap comes on top of the page, it must never crowd out the rows not yet delivered
+        int size = pageSize(demand.get()) + overlap;
+        client.getRequest().setSize(size);
+        LogResponse response = client.executeRequest();
+        updateBoundary(response.getRows());
+        deliver(response.getRows());
+        if (response.getRows().size() + overlap < size) {
+          // caught up, wait for more rows to arrive
+          delay = pollInterval.toMillis();
+        }
+      } catch (IOException e) {
+        LOGGER.warn("Request failure: {}", e.getMessage());
+        delay = pollInterval.toMillis();
+      } catch (RuntimeException e) {
+        cancel();
+        subscriber.onError(e);
+        return;
+      }
+      schedule(delay);
+    }
+
+    private void updateBoundary(Collection<LogRow> rows) {
+      for (LogRow row : rows) {
+        long millis = row.getTime().toInstant().toEpochMilli();
+        if (millis != boundaryMillis) {
+          boundaryMillis = millis;
+          boundaryRows = 0;
+        }
+        boundaryRows++;
+      }
+    }
+
+    private void schedule(long delay) {
+      if (cancelled) {
+        return;
+      }
+      if (demand.get() == 0) {
+        polling.set(false);
+        // demand may have arrived after it was checked but before polling was cleared
+        if (demand.get() == 0 || !polling.compareAndSet(false, true)) {
+          return;
+        }
+      }
+      submit(this::poll, delay);
+    }
+
+    private void submit(Runnable task, long delay) {
+      try {
+        executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+        // cancelled concurrently
+      }
+    }
+  }
+}
@@ -0,0 +1,141 @@
+package org.randomcodemonkey.kibatail.daemon;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The shared secret of a {@link TailDaemon} and the clients allowed to attach to it.
+ *
+ * <p>The daemon creates a random token in a file only its owner can read. Neither side ever sends
+ * the token: when a client connects both sides send a random nonce and prove knowledge of the
+ * token with an HMAC over the nonces. The daemon proves itself first, so a client never sends its
+ * subscription, and the credentials in it, to a process that merely listens on the daemon's port.
+ */
+public class DaemonToken {
+
+  private static final String ALGORITHM = "HmacSHA256";
+
+  private static final int TOKEN_BYTES = 32;
+
+  private static final int NONCE_BYTES = 16;
+
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  private final byte[] secret;
+
+  private DaemonToken(byte[] secret) {
+    this.secret = secret;
+  }
+
+  /**
+   * @param port Port of the daemon
+   * @return the default token file of a daemon listening on the given port
+   */
+  public static Path defaultFile(int port) {
+    return Paths.get(System.getProperty("user.home"), ".kibatail", "daemon-" + port + ".token");
+  }
+
+  /**
+   * Create a new random token and write it to a file readable by the owner only, replacing any
+   * previous token
+   *
+   * @param file Token file
+   * @return the new token
+   */
+  public static DaemonToken create(Path file) throws IOException {
+    DaemonToken token = new DaemonToken(random(TOKEN_BYTES).getBytes(StandardCharsets.UTF_8));
+    Path dir = file.toAbsolutePath().getParent();
+    Path tmp;
+    if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+      if (!Files.isDirectory(dir)) {
+        Files.createDirectories(
+            dir,
+            PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+      }
+      tmp =
+          Files.createTempFile(
+              dir,
+              file.getFileName().toString(),
+              ".tmp",
+              PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+    } else {
+      Files.createDirectories(dir);
+      tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+    }
+    Files.write(tmp, token.secret);
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    return token;
+  }
+
+  /**
+   * @param file Token file written by a daemon
+   * @return the token
+   * @throws IOException if the file can not be read, for example because no daemon is running
+   */
+  public static DaemonToken read(Path file) throws IOException {
+    return new DaemonToken(Files.readAllBytes(file));
+  }
+
+  /** @return a random nonce */
+  public static String nonce() {
+    return random(NONCE_BYTES);
+  }
+
+  /**
+   * @param role Role of the side giving the proof, 'daemon' or 'client'
+   * @param clientNonce Nonce of the client
+   * @param daemonNonce Nonce of the daemon
+   * @return proof of knowing the token
+   */
+  public String proof(String role, String clientNonce, String daemonNonce) {
+    try {
+      Mac mac = Mac.getInstance(ALGORITHM);
+      mac.init(new SecretKeySpec(secret, ALGORITHM));
+      byte[] proof =
+          mac.doFinal(
+              (role + ":" + clientNonce + ":" + daemonNonce).getBytes(StandardCharsets.UTF_8));
+      return hex(proof);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("HMAC not available: " + e.getMessage());
+    }
+  }
+
+  /**
+   * @param proof Proof received from the other side
+   * @param role Role of the other side
+   * @param clientNonce Nonce of the client
+   * @param daemonNonce Nonce of the daemon
+   * @return true if the proof was made with this token, compared in constant time
+   */
+  public boolean verify(String proof, String role, String clientNonce, String daemonNonce) {
+    return proof != null
+        && MessageDigest.isEqual(
+            proof.getBytes(StandardCharsets.UTF_8),
+            proof(role, clientNonce, daemonNonce).getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String random(int bytes) {
+    byte[] data = new byte[bytes];
+    RANDOM.nextBytes(data);
+    return hex(data);
+  }
+
+  private static String hex(byte[] data) {
+    StringBuilder sb = new StringBuilder();
+    for (byte b : data) {
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return sb.toString();
+  }
+}
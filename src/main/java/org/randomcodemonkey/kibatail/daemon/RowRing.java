@@ -0,0 +1,95 @@
+package org.randomcodemonkey.kibatail.daemon;
+
+import java.time.ZonedDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.randomcodemonkey.kibatail.response.LogRow;
+
+/**
+ * A fixed size ring buffer of log rows shared by all subscribers of an upstream query.
+ *
+ * <p>Every row gets a sequence number. Each subscriber keeps its own cursor, the sequence number of
+ * the next row it will read, so subscribers read independently of each other. Once the buffer is
+ * full the oldest rows are overwritten, a subscriber that has fallen further behind than the size
+ * of the buffer skips the overwritten rows.
+ */
+public class RowRing {
+
+  private final LogRow[] rows;
+
+  private long head = 0;
+
+  public RowRing(int capacity) {
+    this.rows = new LogRow[capacity];
+  }
+
+  /**
+   * Append rows to the buffer, waking up waiting readers
+   *
+   * @param added Rows to append, oldest first
+   */
+  public synchronized void addAll(Collection<LogRow> added) {
+    if (added.isEmpty()) {
+      return;
+    }
+    for (LogRow row : added) {
+      rows[(int) (head % rows.length)] = row;
+      head++;
+    }
+    notifyAll();
+  }
+
+  /** @return the sequence number of the oldest row still in the buffer */
+  public synchronized long oldest() {
+    return Math.max(0, head - rows.length);
+  }
+
+  /** @return the sequence number the next appended row will get */
+  public synchronized long head() {
+    return head;
+  }
+
+  /**
+   * @param time Time of a row
+   * @return the sequence number of the oldest buffered row at or after the given time, or {@link
+   *     #head()} if there is none
+   */
+  public synchronized long seqAtOrAfter(ZonedDateTime time) {
+    for (long seq = oldest(); seq < head; seq++) {
+      if (!rows[(int) (seq % rows.length)].getTime().isBefore(time)) {
+        return seq;
+      }
+    }
+    return head;
+  }
+
+  /**
+   * Read rows starting from the given sequence number, waiting for rows if there are none yet
+   *
+   * @param from Sequence number of the first row to read, must not be older than {@link #oldest()}
+   * @param result Rows read are added here
+   * @param max Maximum number of rows to read
+   * @param timeout Maximum time to wait for rows
+   * @param unit Unit of timeout
+   * @return the sequence number of the next row to read
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public synchronized long read(
+      long from, List<LogRow> result, int max, long timeout, TimeUnit unit)
+      throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (from >= head) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        return from;
+      }
+      TimeUnit.NANOSECONDS.timedWait(this, remaining);
+    }
+    long seq = Math.max(from, oldest());
+    for (; seq < head && result.size() < max; seq++) {
+      result.add(rows[(int) (seq % rows.length)]);
+    }
+    return seq;
+  }
+}
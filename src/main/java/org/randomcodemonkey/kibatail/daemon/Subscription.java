@@ -0,0 +1,128 @@
+package org.randomcodemonkey.kibatail.daemon;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.randomcodemonkey.kibatail.request.JSONSerializable;
+
+/**
+ * What a client attaching to a {@link TailDaemon} wants to tail. Sent to the daemon as a single
+ * line of JSON.
+ */
+public class Subscription implements JSONSerializable {
+
+  private List<String> servers = new ArrayList<>();
+
+  private String index;
+
+  private String user;
+
+  private String password;
+
+  private List<String> patterns = new ArrayList<>();
+
+  private String fields;
+
+  public Subscription setServers(List<String> servers) {
+    this.servers = new ArrayList<>(servers);
+    return this;
+  }
+
+  public Subscription setIndex(String index) {
+    this.index = index;
+    return this;
+  }
+
+  public Subscription setUser(String user) {
+    this.user = user;
+    return this;
+  }
+
+  public Subscription setPassword(String password) {
+    this.password = password;
+    return this;
+  }
+
+  public Subscription setPatterns(List<String> patterns) {
+    this.patterns = new ArrayList<>(patterns);
+    return this;
+  }
+
+  public Subscription setFields(String fields) {
+    this.fields = fields;
+    return this;
+  }
+
+  public List<String> getServers() {
+    return servers;
+  }
+
+  public String getIndex() {
+    return index;
+  }
+
+  public String getUser() {
+    return user;
+  }
+
+  public String getPassword() {
+    return password;
+  }
+
+  public List<String> getPatterns() {
+    return patterns;
+  }
+
+  public String getFields() {
+    return fields;
+  }
+
+  /**
+   * @return a key identifying the upstream query of this subscription, subscriptions only share an
+   *     upstream query if their keys are equal. The match patterns are part of the key so that a
+   *     client sees exactly the rows it would have seen querying the servers itself, and the
+   *     credentials so that it only ever sees rows it could have queried itself.
+   */
+  List<Object> upstreamKey() {
+    return Arrays.asList(servers, index, user, password, new TreeSet<>(patterns));
+  }
+
+  @Override
+  public JSONObject toJson() {
+    return new JSONObject()
+        .put("servers", new JSONArray(servers))
+        .put("index", index)
+        .putOpt("user", user)
+        .putOpt("password", password)
+        .put("match", new JSONArray(patterns))
+        .putOpt("fields", fields);
+  }
+
+  public static Subscription fromJson(JSONObject json) {
+    Subscription s = new Subscription();
+    JSONArray servers = json.getJSONArray("servers");
+    for (int i = 0; i < servers.length(); i++) {
+      s.servers.add(servers.getString(i));
+    }
+    s.index = json.getString("index");
+    s.user = json.optString("user", null);
+    s.password = json.optString("password", null);
+    JSONArray match = json.optJSONArray("match");
+    for (int i = 0; match != null && i < match.length(); i++) {
+      s.patterns.add(match.getString(i));
+    }
+    s.fields = json.optString("fields", null);
+    if (s.servers.isEmpty()) {
+      throw new IllegalArgumentException("At least one server is required");
+    }
+    return s;
+  }
+
+  @Override
+  public String toString() {
+    return servers + " " + index + " " + patterns + (user == null ? "" : " as " + user);
+  }
+}
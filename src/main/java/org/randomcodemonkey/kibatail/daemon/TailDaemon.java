@@ -0,0 +1,308 @@
+package org.randomcodemonkey.kibatail.daemon;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.randomcodemonkey.kibatail.response.LogPrinter;
+import org.randomcodemonkey.kibatail.response.LogRow;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Owns the upstream polling for many local clients.
+ *
+ * <p>Clients connect to a loopback port. The daemon and the client first prove to each other that
+ * they know the {@link DaemonToken} of the daemon, then the client sends a {@link Subscription} as
+ * a single line of JSON. The daemon answers with a line of JSON that is either <code>{"ok":true}
+ * </code> or contains an <code>"error"</code>, and then streams the formatted log rows until the
+ * client disconnects. Lines starting with {@link #CONTROL_PREFIX} are notices for the client, not
+ * log rows.
+ *
+ * <p>Subscriptions to the same servers and index with the same credentials and the same match
+ * patterns share an upstream query. Every upstream query appends its rows to a {@link RowRing} and
+ * every subscriber reads the ring with its own cursor, so a slow subscriber only skips rows itself.
+ * An upstream query stops polling when its last subscriber disconnects.
+ */
+public class TailDaemon implements Runnable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TailDaemon.class);
+
+  public static final int DEFAULT_PORT = 5650;
+
+  /** Prefix of the lines of a session that are notices rather than log rows */
+  public static final char CONTROL_PREFIX = '\u001e';
+
+  private static final int LOOK_BACK_SECONDS = 60;
+
+  private static final int BATCH_SIZE = 1000;
+
+  private static final int HANDSHAKE_TIMEOUT_MILLIS = 10000;
+
+  private final Map<List<Object>, Upstream> upstreams = new HashMap<>();
+
+  private final int bufferSize;
+
+  private final Path tokenFile;
+
+  private final DaemonToken token;
+
+  private final ServerSocket serverSocket;
+
+  /**
+   * @param port Loopback port to listen on, 0 for any free port
+   * @param bufferSize Number of rows kept for subscribers of each upstream query
+   * @param tokenFile File to write the token clients need to attach to, readable by the owner only
+   */
+  public TailDaemon(int port, int bufferSize, Path tokenFile) throws IOException {
+    this.bufferSize = bufferSize;
+    this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    this.tokenFile = tokenFile;
+    try {
+      this.token = DaemonToken.create(tokenFile);
+    } catch (IOException e) {
+      serverSocket.close();
+      throw e;
+    }
+  }
+
+  /** @return the port the daemon listens on */
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  /** @return the number of upstream queries currently polling */
+  public synchronized int getUpstreamCount() {
+    return upstreams.size();
+  }
+
+  @Override
+  public void run() {
+    LOGGER.info("Tail daemon listening on port {}, token in {}", getPort(), tokenFile);
+    while (!serverSocket.isClosed()) {
+      try {
+        Socket socket = serverSocket.accept();
+        Thread session = new Thread(() -> serve(socket), "kibatail-session");
+        session.setDaemon(true);
+        session.start();
+      } catch (SocketException e) {
+        // closed
+      } catch (IOException e) {
+        LOGGER.warn("Accept failure: {}", e.getMessage());
+      }
+    }
+  }
+
+  public void close() throws IOException {
+    serverSocket.close();
+    Files.deleteIfExists(tokenFile);
+  }
+
+  private void serve(Socket socket) {
+    try (socket) {
+      socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+      BufferedReader in =
+          new BufferedReader(
+              new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+      PrintStream out = new PrintStream(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+      Subscription subscription;
+      Attachment attachment;
+      try {
+        String clientNonce = new JSONObject(readLine(in)).getString("nonce");
+        String daemonNonce = DaemonToken.nonce();
+        out.println(
+            new JSONObject()
+                .put("nonce", daemonNonce)
+                .put("proof", token.proof("daemon", clientNonce, daemonNonce)));
+        JSONObject request = new JSONObject(readLine(in));
+        if (!token.verify(request.optString("proof", null), "client", clientNonce, daemonNonce)) {
+          LOGGER.warn("Rejected a client without the token");
+          out.println(new JSONObject().put("error", "Invalid token"));
+          return;
+        }
+        subscription = Subscription.fromJson(request);
+        attachment = subscribe(subscription);
+      } catch (JSONException | IllegalArgumentException | URISyntaxException e) {
+        out.println(new JSONObject().put("error", String.valueOf(e.getMessage())));
+        return;
+      }
+      socket.setSoTimeout(0);
+      LOGGER.info("Attach {} to {}", subscription, attachment.upstream);
+      out.println(new JSONObject().put("ok", true));
+      try {
+        Thread writer = Thread.currentThread();
+        Thread watcher = new Thread(() -> awaitEof(in, writer), "kibatail-eof");
+        watcher.setDaemon(true);
+        watcher.start();
+        stream(subscription, attachment, out);
+      } finally {
+        LOGGER.info("Detach {} from {}", subscription, attachment.upstream);
+        unsubscribe(subscription, attachment.upstream);
+      }
+    } catch (IOException e) {
+      LOGGER.warn("Session failure: {}", e.getMessage());
+    }
+  }
+
+  private static String readLine(BufferedReader in) throws IOException {
+    String line = in.readLine();
+    if (line == null) {
+      throw new IOException("Connection closed during handshake");
+    }
+    return line;
+  }
+
+  private void awaitEof(BufferedReader in, Thread writer) {
+    try {
+      while (in.readLine() != null) {
+        // clients send nothing after the subscription
+      }
+    } catch (IOException e) {
+      // closed
+    }
+    writer.interrupt();
+  }
+
+  private void stream(Subscription subscription, Attachment attachment, PrintStream out) {
+    LogPrinter printer = new LogPrinter(subscription.getFields(), null, out);
+    RowRing ring = attachment.upstream.getRing();
+    long cursor = attachment.cursor;
+    List<LogRow> rows = new ArrayList<>();
+    while (!out.checkError()) {
+      rows.clear();
+      try {
+        long oldest = ring.oldest();
+        if (cursor < oldest) {
+          out.println(CONTROL_PREFIX + new JSONObject().put("dropped", oldest - cursor).toString());
+        }
+        cursor = ring.read(Math.max(cursor, oldest), rows, BATCH_SIZE, 1, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        return;
+      }
+      printer.print(rows);
+    }
+  }
+
+  /**
+   * Find the upstream query of the subscription, or start a new one
+   *
+   * @param subscription Subscription to attach
+   * @return Upstream query the subscription reads from, and where in its rows to start
+   */
+  synchronized Attachment subscribe(Subscription subscription) throws URISyntaxException {
+    List<Object> key = subscription.upstreamKey();
+    Upstream upstream = upstreams.get(key);
+    if (upstream == null) {
+      upstream = new Upstream(subscription, LOOK_BACK_SECONDS, bufferSize);
+      upstreams.put(key, upstream);
+      LOGGER.info("Start upstream query {}", upstream);
+    }
+    List<String> fields = new LogPrinter(subscription.getFields()).getSchema().getFields();
+    RowRing ring = upstream.getRing();
+    // buffered rows are only replayed if they contain every field the subscriber prints
+    long cursor =
+        upstream.addFields(fields)
+            ? ring.seqAtOrAfter(ZonedDateTime.now().minusSeconds(LOOK_BACK_SECONDS))
+            : ring.head();
+    upstream.subscribe();
+    return new Attachment(upstream, cursor);
+  }
+
+  synchronized void unsubscribe(Subscription subscription, Upstream upstream) {
+    if (upstream.unsubscribe()) {
+      LOGGER.info("Stop upstream query {}", upstream);
+      upstreams.remove(subscription.upstreamKey());
+    }
+  }
+
+  /**
+   * Attach to a running daemon and copy the rows it streams until the daemon disconnects. Notices
+   * of the daemon, such as rows dropped because the client could not keep up, are logged.
+   *
+   * @param port Port of the daemon
+   * @param tokenFile Token file written by the daemon
+   * @param subscription What to tail
+   * @param out Stream to copy the rows to
+   * @throws IOException if the daemon can not be reached or can not prove it knows the token
+   * @throws IllegalArgumentException if the daemon rejects the subscription
+   */
+  public static void attach(int port, Path tokenFile, Subscription subscription, PrintStream out)
+      throws IOException {
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+      BufferedReader in = open(socket, tokenFile, subscription);
+      String line;
+      while ((line = in.readLine()) != null) {
+        if (!line.isEmpty() && line.charAt(0) == CONTROL_PREFIX) {
+          JSONObject notice = new JSONObject(line.substring(1));
+          LOGGER.warn("Client can not keep up, {} rows dropped", notice.optLong("dropped"));
+        } else {
+          out.println(line);
+        }
+      }
+    }
+  }
+
+  /**
+   * Authenticate to the daemon and send the subscription
+   *
+   * @return reader of the streamed rows
+   */
+  static BufferedReader open(Socket socket, Path tokenFile, Subscription subscription)
+      throws IOException {
+    DaemonToken token;
+    try {
+      token = DaemonToken.read(tokenFile);
+    } catch (IOException e) {
+      throw new IOException(
+          "Can not read the daemon token, is the daemon running? " + e.getMessage());
+    }
+    socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+    PrintStream request = new PrintStream(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+    BufferedReader in =
+        new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    String clientNonce = DaemonToken.nonce();
+    request.println(new JSONObject().put("nonce", clientNonce));
+    JSONObject challenge = new JSONObject(readLine(in));
+    String daemonNonce = challenge.getString("nonce");
+    if (!token.verify(challenge.optString("proof", null), "daemon", clientNonce, daemonNonce)) {
+      throw new IOException("The process on port " + socket.getPort() + " is not the daemon");
+    }
+    request.println(
+        subscription.toJson().put("proof", token.proof("client", clientNonce, daemonNonce)));
+    JSONObject reply = new JSONObject(readLine(in));
+    if (reply.has("error")) {
+      throw new IllegalArgumentException(reply.getString("error"));
+    }
+    socket.setSoTimeout(0);
+    return in;
+  }
+
+  /** An upstream query and the sequence number a new subscriber starts reading it from */
+  static class Attachment {
+
+    final Upstream upstream;
+
+    final long cursor;
+
+    Attachment(Upstream upstream, long cursor) {
+      this.upstream = upstream;
+      this.cursor = cursor;
+    }
+  }
+}
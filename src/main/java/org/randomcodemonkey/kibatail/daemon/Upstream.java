@@ -0,0 +1,145 @@
+package org.randomcodemonkey.kibatail.daemon;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.http.client.utils.URIBuilder;
+import org.randomcodemonkey.kibatail.client.KibaHttpClient;
+import org.randomcodemonkey.kibatail.request.LogRequest.BooleanFilter;
+import org.randomcodemonkey.kibatail.request.LogRequest.PhraseFilterMatch;
+import org.randomcodemonkey.kibatail.response.RowSchema;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single upstream query of a {@link TailDaemon}, polled on its own thread while it has
+ * subscribers. The rows are appended to a {@link RowRing} which the subscribers read from.
+ */
+public class Upstream {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(Upstream.class);
+
+  private static final int POLL_INTERVAL_MILLIS = 1000;
+
+  private final KibaHttpClient client;
+
+  private final RowRing ring;
+
+  private final AtomicBoolean running = new AtomicBoolean();
+
+  private final String name;
+
+  private RowSchema schema = new RowSchema(List.of());
+
+  private int subscribers = 0;
+
+  /**
+   * @param subscription The subscription defining the source and the match patterns of the query
+   * @param lookBackSeconds How far back the first request looks
+   * @param bufferSize Number of rows kept for subscribers
+   */
+  public Upstream(Subscription subscription, int lookBackSeconds, int bufferSize)
+      throws URISyntaxException {
+    List<URI> uris = new ArrayList<>();
+    for (String server : subscription.getServers()) {
+      uris.add(new URIBuilder(server).build());
+    }
+    List<BooleanFilter> filters = new ArrayList<>();
+    for (String pattern : subscription.getPatterns()) {
+      String[] parts = pattern.split(":", 2);
+      if (parts.length != 2) {
+        throw new IllegalArgumentException(
+            "Match pattern '" + pattern + "' is invalid, must be provided as 'field:pattern'");
+      }
+      BooleanFilter filter = new BooleanFilter();
+      filter.addShould(new PhraseFilterMatch().setPhrase(parts[0]).setValue(parts[1]));
+      filters.add(filter);
+    }
+    this.client = new KibaHttpClient(uris, subscription.getIndex(), lookBackSeconds);
+    if (subscription.getUser() != null && subscription.getPassword() != null) {
+      client.setUser(subscription.getUser());
+      client.setPassword(subscription.getPassword());
+    }
+    filters.forEach(client.getRequest()::addQueryFilter);
+    this.ring = new RowRing(bufferSize);
+    this.name = subscription.getIndex() + " " + subscription.getPatterns();
+  }
+
+  public RowRing getRing() {
+    return ring;
+  }
+
+  /**
+   * Make sure the rows of this upstream contain the given fields from now on
+   *
+   * @param fields Fields needed by a subscriber
+   * @return true if the rows fetched so far already contain the fields
+   */
+  public synchronized boolean addFields(List<String> fields) {
+    if (schema.getFields().containsAll(fields)) {
+      return true;
+    }
+    schema = schema.with(fields);
+    client.setSchema(schema);
+    return false;
+  }
+
+  /** Register a subscriber, starting to poll if this is the first one */
+  public synchronized void subscribe() {
+    subscribers++;
+    if (running.compareAndSet(false, true)) {
+      Thread poller = new Thread(this::poll, "kibatail-upstream");
+      poller.setDaemon(true);
+      poller.start();
+    }
+  }
+
+  /**
+   * Unregister a subscriber, stopping polling if this was the last one
+   *
+   * @return true if this upstream has no subscribers left
+   */
+  public synchronized boolean unsubscribe() {
+    subscribers--;
+    if (subscribers == 0) {
+      running.set(false);
+      return true;
+    }
+    return false;
+  }
+
+  public synchronized int getSubscribers() {
+    return subscribers;
+  }
+
+  private void poll() {
+    LOGGER.info("Start polling {}", name);
+    try {
+      while (running.get()) {
+        try {
+          ring.addAll(client.executeRequest().getRows());
+        } catch (IOException e) {
+          LOGGER.warn("Request failure for {}: {}", name, e.getMessage());
+        }
+        Thread.sleep(POLL_INTERVAL_MILLIS);
+      }
+    } catch (InterruptedException e) {
+      LOGGER.warn("Interrupted while polling {}", name);
+    } finally {
+      LOGGER.info("Stop polling {}", name);
+      try {
+        client.close();
+      } catch (IOException e) {
+        LOGGER.debug("Closing the client of {} failed: {}", name, e.getMessage());
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
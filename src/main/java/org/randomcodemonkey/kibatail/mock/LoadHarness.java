@@ -0,0 +1,312 @@
+package org.randomcodemonkey.kibatail.mock;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Locale;
+import org.randomcodemonkey.kibatail.client.KibaHttpClient;
+import org.randomcodemonkey.kibatail.response.LogResponse;
+import org.randomcodemonkey.kibatail.response.LogRow;
+import org.randomcodemonkey.kibatail.response.RowSchema;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * End-to-end throughput harness.
+ *
+ * <p>Starts a {@link MockKibanaServer} generating hits at a given rate, tails it with {@link
+ * KibaHttpClient} the same way kibatail does, and reports the number of rows received per second,
+ * the number of rows lost or received more than once, and percentiles of the latency from a row
+ * becoming searchable until it was received.
+ */
+public class LoadHarness {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(LoadHarness.class);
+
+  @Parameter(
+      names = {"--help", "-h"},
+      description = "Usage help",
+      help = true)
+  private boolean help;
+
+  @Parameter(
+      names = {"--rate", "-r"},
+      description = "Number of rows generated per second")
+  private int rate = 10000;
+
+  @Parameter(
+      names = {"--document-size"},
+      description = "Approximate size of each generated row in bytes")
+  private int documentSize = 512;
+
+  @Parameter(
+      names = {"--ingest-lag"},
+      description = "Milliseconds until a generated row becomes searchable")
+  private int ingestLag = 500;
+
+  @Parameter(
+      names = {"--duration", "-t"},
+      description = "Seconds to generate rows for")
+  private int duration = 10;
+
+  @Parameter(
+      names = {"--poll-interval"},
+      description = "Milliseconds between requests")
+  private int pollInterval = 1000;
+
+  @Parameter(
+      names = {"--page-size"},
+      description = "Maximum number of rows requested at once")
+  private int pageSize = 500;
+
+  @Parameter(
+      names = {"--timestamp-precision"},
+      description =
+          "Precision of the generated timestamps, for example 'millis' like an Elasticsearch"
+              + " 'date' field, 'seconds' or 'nanos'")
+  private String timestampPrecision = "millis";
+
+  public LoadHarness setRate(int rate) {
+    this.rate = rate;
+    return this;
+  }
+
+  public LoadHarness setDocumentSize(int documentSize) {
+    this.documentSize = documentSize;
+    return this;
+  }
+
+  public LoadHarness setIngestLag(int ingestLag) {
+    this.ingestLag = ingestLag;
+    return this;
+  }
+
+  public LoadHarness setDuration(int duration) {
+    this.duration = duration;
+    return this;
+  }
+
+  public LoadHarness setPollInterval(int pollInterval) {
+    this.pollInterval = pollInterval;
+    return this;
+  }
+
+  public LoadHarness setPageSize(int pageSize) {
+    this.pageSize = pageSize;
+    return this;
+  }
+
+  public LoadHarness setTimestampPrecision(ChronoUnit timestampPrecision) {
+    this.timestampPrecision = timestampPrecision.name();
+    return this;
+  }
+
+  /**
+   * Run the harness
+   *
+   * @return Report of the run
+   */
+  public Report run() throws IOException, URISyntaxException, InterruptedException {
+    try (MockKibanaServer server =
+        MockKibanaServer.generating(rate, documentSize, Duration.ofMillis(ingestLag))
+            .setTimestampPrecision(precision())
+            .start()) {
+      KibaHttpClient client = new KibaHttpClient(server.getUri(), "mock*", 60);
+      client.getRequest().setSize(pageSize);
+      client.setSchema(RowSchema.parse("seq"));
+
+      BitSet seen = new BitSet();
+      long received = 0;
+      long duplicates = 0;
+      long failures = 0;
+      long[] latencies = new long[1024];
+
+      long started = System.nanoTime();
+      server.stopGenerating(server.timestampOf(0).plusSeconds(duration));
+      // keep polling after generation has stopped until every row has become searchable
+      long pollUntil =
+          started
+              + Duration.ofSeconds(duration).toNanos()
+              + Duration.ofMillis(ingestLag + 2L * pollInterval).toNanos();
+      while (System.nanoTime() < pollUntil) {
+        long pollStart = System.nanoTime();
+        try {
+          LogResponse response = client.executeRequest();
+          Instant now = Instant.now();
+          for (LogRow row : response.getRows()) {
+            int seq = Integer.parseInt(row.getField("seq"));
+            if (seen.get(seq)) {
+              duplicates++;
+              continue;
+            }
+            seen.set(seq);
+            if (received == latencies.length) {
+              latencies = Arrays.copyOf(latencies, latencies.length * 2);
+            }
+            latencies[(int) received++] =
+                Duration.between(server.timestampOf(seq).plus(server.getIngestLag()), now)
+                    .toMillis();
+          }
+        } catch (IOException e) {
+          failures++;
+          LOGGER.warn("Request failure: {}", e.getMessage());
+        }
+        long sleep = pollInterval - Duration.ofNanos(System.nanoTime() - pollStart).toMillis();
+        if (sleep > 0) {
+          Thread.sleep(sleep);
+        }
+      }
+      long elapsed = System.nanoTime() - started;
+
+      Arrays.sort(latencies, 0, (int) received);
+      return new Report(
+          server.getGenerated(),
+          received,
+          server.getGenerated() - seen.cardinality(),
+          duplicates,
+          failures,
+          server.getRequests(),
+          received / (elapsed / 1_000_000_000.0),
+          percentiles(latencies, (int) received));
+    }
+  }
+
+  private static long[] percentiles(long[] sorted, int count) {
+    int[] ps = Report.PERCENTILES;
+    long[] result = new long[ps.length];
+    for (int i = 0; i < ps.length; i++) {
+      result[i] =
+          count == 0 ? -1 : sorted[Math.min(count - 1, (int) Math.ceil(ps[i] / 100.0 * count) - 1)];
+    }
+    return result;
+  }
+
+  /** Result of a harness run */
+  public static class Report {
+
+    static final int[] PERCENTILES = {50, 90, 99, 100};
+
+    private final long generated;
+
+    private final long received;
+
+    private final long lost;
+
+    private final long duplicates;
+
+    private final long failures;
+
+    private final long requests;
+
+    private final double rowsPerSecond;
+
+    private final long[] latencyPercentiles;
+
+    private Report(
+        long generated,
+        long received,
+        long lost,
+        long duplicates,
+        long failures,
+        long requests,
+        double rowsPerSecond,
+        long[] latencyPercentiles) {
+      this.generated = generated;
+      this.received = received;
+      this.lost = lost;
+      this.duplicates = duplicates;
+      this.failures = failures;
+      this.requests = requests;
+      this.rowsPerSecond = rowsPerSecond;
+      this.latencyPercentiles = latencyPercentiles;
+    }
+
+    public long getGenerated() {
+      return generated;
+    }
+
+    public long getReceived() {
+      return received;
+    }
+
+    public long getLost() {
+      return lost;
+    }
+
+    public long getDuplicates() {
+      return duplicates;
+    }
+
+    public long getFailures() {
+      return failures;
+    }
+
+    public double getRowsPerSecond() {
+      return rowsPerSecond;
+    }
+
+    /**
+     * @param percentile One of 50, 90, 99 or 100
+     * @return latency in milliseconds from a row becoming searchable until it was received
+     */
+    public long getLatency(int percentile) {
+      int idx = Arrays.binarySearch(PERCENTILES, percentile);
+      if (idx < 0) {
+        throw new IllegalArgumentException("Unsupported percentile " + percentile);
+      }
+      return latencyPercentiles[idx];
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder();
+      sb.append(String.format("rows generated   %d%n", generated));
+      sb.append(String.format("rows received    %d%n", received));
+      sb.append(String.format("rows lost        %d%n", lost));
+      sb.append(String.format("rows duplicated  %d%n", duplicates));
+      sb.append(String.format("requests         %d (%d failed)%n", requests, failures));
+      sb.append(String.format("rows/sec         %.1f%n", rowsPerSecond));
+      for (int i = 0; i < PERCENTILES.length; i++) {
+        sb.append(
+            String.format("latency p%-3d     %d ms%n", PERCENTILES[i], latencyPercentiles[i]));
+      }
+      return sb.toString();
+    }
+  }
+
+  private ChronoUnit precision() {
+    try {
+      return ChronoUnit.valueOf(timestampPrecision.toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      throw new ParameterException("Invalid timestamp precision '" + timestampPrecision + "'");
+    }
+  }
+
+  public static void main(String[] args) {
+    try {
+      LoadHarness harness = new LoadHarness();
+      JCommander commander = JCommander.newBuilder().addObject(harness).build();
+      commander.parse(args);
+      if (harness.help) {
+        commander.usage();
+        System.exit(0);
+      }
+      System.out.print(harness.run());
+    } catch (ParameterException e) {
+      System.out.println(e.getMessage());
+      System.out.println();
+      System.out.println("Use --help for details");
+      System.exit(1);
+    } catch (Exception e) {
+      LOGGER.error("LoadHarness error: {}", e.getMessage(), e);
+      System.exit(1);
+    }
+  }
+}
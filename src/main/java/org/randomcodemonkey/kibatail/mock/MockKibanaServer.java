@@ -0,0 +1,377 @@
+package org.randomcodemonkey.kibatail.mock;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An in-process stand-in for the Kibana search API used by {@link
+ * org.randomcodemonkey.kibatail.client.KibaHttpClient}.
+ *
+ * <p>Requests are accepted at <code>/elasticsearch/indexpattern/_search</code>. The server either
+ * generates synthetic log hits or replays recorded response bodies.
+ *
+ * <p>Synthetic hits are generated at a fixed rate starting from when the server is started. Each
+ * hit has a sequence number in the 'seq' field, a timestamp, and becomes visible to searches only
+ * once the ingest lag has passed since its timestamp. Searches return the newest hits within the
+ * '@timestamp' range of the request, or the oldest if the request sorts by ascending '@timestamp',
+ * limited to the size of the request.
+ */
+public class MockKibanaServer implements AutoCloseable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MockKibanaServer.class);
+
+  private static final String[] LEVELS = {"INFO", "INFO", "INFO", "DEBUG", "WARN", "ERROR"};
+
+  private static final String[] SERVICES = {"orders", "payments", "users", "search"};
+
+  private final HttpServer server;
+
+  private final ExecutorService executor;
+
+  private final int rate;
+
+  private final int documentSize;
+
+  private final Duration ingestLag;
+
+  private final List<String> replay;
+
+  private final AtomicInteger replayIndex = new AtomicInteger();
+
+  private final AtomicLong requests = new AtomicLong();
+
+  private ChronoUnit timestampPrecision = ChronoUnit.MILLIS;
+
+  private volatile Duration responseDelay = Duration.ZERO;
+
+  private volatile int failureStatus = 0;
+
+  private volatile Instant start;
+
+  private volatile Instant stop;
+
+  private MockKibanaServer(int rate, int documentSize, Duration ingestLag, List<String> replay)
+      throws IOException {
+    this.rate = rate;
+    this.documentSize = documentSize;
+    this.ingestLag = ingestLag;
+    this.replay = replay;
+    this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    this.executor =
+        Executors.newFixedThreadPool(
+            4,
+            r -> {
+              Thread t = new Thread(r, "mock-kibana");
+              t.setDaemon(true);
+              return t;
+            });
+    this.server.setExecutor(executor);
+    this.server.createContext("/elasticsearch/", this::handle);
+  }
+
+  /**
+   * Create a server generating synthetic hits
+   *
+   * @param rate Number of hits generated per second
+   * @param documentSize Approximate size of the '_source' of each hit in bytes
+   * @param ingestLag Time after its timestamp until a hit becomes searchable
+   * @return a server, not yet started
+   */
+  public static MockKibanaServer generating(int rate, int documentSize, Duration ingestLag)
+      throws IOException {
+    if (rate <= 0) {
+      throw new IllegalArgumentException("Rate must be positive");
+    }
+    return new MockKibanaServer(rate, documentSize, ingestLag, null);
+  }
+
+  /**
+   * Create a server replaying recorded response bodies, one per request, in order. The last body
+   * is repeated once all have been served.
+   *
+   * @param bodies Recorded response bodies
+   * @return a server, not yet started
+   */
+  public static MockKibanaServer replaying(List<String> bodies) throws IOException {
+    if (bodies.isEmpty()) {
+      throw new IllegalArgumentException("At least one recorded response is required");
+    }
+    return new MockKibanaServer(0, 0, Duration.ZERO, List.copyOf(bodies));
+  }
+
+  /**
+   * Create a server replaying recorded response bodies from a file containing one JSON response
+   * body per line
+   *
+   * @param file File of recorded responses
+   * @return a server, not yet started
+   */
+  public static MockKibanaServer replaying(Path file) throws IOException {
+    return replaying(
+        Files.readAllLines(file, StandardCharsets.UTF_8).stream()
+            .filter(line -> !line.isBlank())
+            .collect(Collectors.toList()));
+  }
+
+  /**
+   * Set the precision of the '@timestamp' of the generated hits, milliseconds by default like an
+   * Elasticsearch 'date' field. Hits generated within the same unit share a timestamp.
+   *
+   * @param precision Unit the timestamps are truncated to
+   */
+  public MockKibanaServer setTimestampPrecision(ChronoUnit precision) {
+    this.timestampPrecision = precision;
+    return this;
+  }
+
+  /**
+   * Delay every response, for example to make this server the slow one of several. May be changed
+   * while the server is running.
+   *
+   * @param responseDelay Time to wait before answering a request
+   */
+  public MockKibanaServer setResponseDelay(Duration responseDelay) {
+    this.responseDelay = responseDelay;
+    return this;
+  }
+
+  /**
+   * Answer every search request with the given HTTP status instead of hits. May be changed while
+   * the server is running.
+   *
+   * @param failureStatus HTTP status to fail with, or 0 to answer normally
+   */
+  public MockKibanaServer setFailureStatus(int failureStatus) {
+    this.failureStatus = failureStatus;
+    return this;
+  }
+
+  public MockKibanaServer start() {
+    this.start = Instant.now();
+    server.start();
+    LOGGER.info("Mock Kibana listening on {}", getUri());
+    return this;
+  }
+
+  /** Stop generating new hits, hits generated so far remain searchable */
+  public void stopGenerating() {
+    stopGenerating(Instant.now());
+  }
+
+  /**
+   * Stop generating new hits at the given time, hits generated before it remain searchable
+   *
+   * @param at Time after which no more hits are generated, exclusive
+   */
+  public void stopGenerating(Instant at) {
+    this.stop = at;
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  /** @return the base URI of the server, to be given to the client as the server URL */
+  public URI getUri() {
+    return URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+  }
+
+  /** @return the number of search requests served */
+  public long getRequests() {
+    return requests.get();
+  }
+
+  /** @return the number of hits generated up to now, or until generation was stopped */
+  public long getGenerated() {
+    Instant end = Instant.now();
+    if (stop != null && !stop.isAfter(end)) {
+      end = stop.minusNanos(1);
+    }
+    return indexAtOrBefore(end) + 1;
+  }
+
+  /** @return the timestamp of the hit with the given sequence number */
+  public Instant timestampOf(long seq) {
+    return start.plusNanos(seq * 1_000_000_000L / rate);
+  }
+
+  public Duration getIngestLag() {
+    return ingestLag;
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    requests.incrementAndGet();
+    try {
+      if (!responseDelay.isZero()) {
+        Thread.sleep(responseDelay.toMillis());
+      }
+      if (!"POST".equals(exchange.getRequestMethod())
+          || !exchange.getRequestURI().getPath().endsWith("/_search")) {
+        respond(exchange, 404, "{\"error\":\"not found\"}");
+        return;
+      }
+      if (failureStatus > 0) {
+        respond(exchange, failureStatus, "{\"error\":\"mock failure\"}");
+        return;
+      }
+      JSONObject request =
+          new JSONObject(
+              new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+      String body;
+      if (replay != null) {
+        int idx = replayIndex.getAndIncrement();
+        body = replay.get(Math.min(idx, replay.size() - 1));
+      } else {
+        body = search(request);
+      }
+      respond(exchange, 200, body);
+    } catch (InterruptedException e) {
+      // stopped while delaying the response
+      exchange.close();
+    } catch (RuntimeException e) {
+      LOGGER.warn("Mock request failed: {}", e.getMessage(), e);
+      respond(
+          exchange, 400, new JSONObject().put("error", String.valueOf(e.getMessage())).toString());
+    }
+  }
+
+  private void respond(HttpExchange exchange, int status, String body) throws IOException {
+    byte[] data = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().add("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, data.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(data);
+    }
+  }
+
+  private String search(JSONObject request) {
+    int size = request.optInt("size", 500);
+    boolean ascending = false;
+    JSONArray sort = request.optJSONArray("sort");
+    if (sort != null && sort.length() > 0) {
+      JSONObject timestampSort = sort.getJSONObject(0).optJSONObject("@timestamp");
+      ascending = timestampSort != null && "asc".equals(timestampSort.optString("order"));
+    }
+    Instant gte = start;
+    Instant lte = Instant.now();
+    JSONArray filters =
+        request.getJSONObject("query").getJSONObject("bool").optJSONArray("filter");
+    for (int i = 0; filters != null && i < filters.length(); i++) {
+      JSONObject range = filters.getJSONObject(i).optJSONObject("range");
+      if (range != null && range.has("@timestamp")) {
+        JSONObject timestamp = range.getJSONObject("@timestamp");
+        gte = OffsetDateTime.parse(timestamp.getString("gte")).toInstant();
+        lte = OffsetDateTime.parse(timestamp.getString("lte")).toInstant();
+      }
+    }
+
+    Instant visible = Instant.now().minus(ingestLag);
+    if (visible.isBefore(lte)) {
+      lte = visible;
+    }
+    if (stop != null && !stop.isAfter(lte)) {
+      lte = stop.minusNanos(1);
+    }
+
+    long first = Math.max(0, indexAtOrAfter(gte));
+    long last = indexAtOrBefore(lte);
+    long total = Math.max(0, last - first + 1);
+
+    StringBuilder hits = new StringBuilder();
+    long count = Math.min(total, size);
+    for (long i = 0; i < count; i++) {
+      if (hits.length() > 0) {
+        hits.append(',');
+      }
+      hits.append(hit(ascending ? first + i : last - i));
+    }
+    return "{\"took\":1,\"timed_out\":false,"
+        + "\"_shards\":{\"total\":1,\"successful\":1,\"skipped\":0,\"failed\":0},"
+        + "\"hits\":{\"total\":"
+        + total
+        + ",\"max_score\":null,\"hits\":["
+        + hits
+        + "]}}";
+  }
+
+  private String hit(long seq) {
+    JSONObject source =
+        new JSONObject()
+            .put("@timestamp", timestampOf(seq).truncatedTo(timestampPrecision).toString())
+            .put("seq", seq)
+            .put("log_level", LEVELS[(int) (seq % LEVELS.length)])
+            .put("service_name", SERVICES[(int) (seq % SERVICES.length)])
+            .put("logger_name", "org.example.MockService")
+            .put("thread_name", "worker-" + (seq % 8))
+            .put(
+                "kubernetes",
+                new JSONObject().put("container", new JSONObject().put("name", "mock")));
+    String message = "Synthetic log row " + seq;
+    int padding = documentSize - source.toString().length() - message.length() - 14;
+    if (padding > 0) {
+      message = message + " " + "x".repeat(padding);
+    }
+    source.put("message", message);
+    return new JSONObject()
+        .put("_index", "mock")
+        .put("_id", "mock-" + seq)
+        .put("_score", JSONObject.NULL)
+        .put("_source", source)
+        .toString();
+  }
+
+  /** @return the sequence number of the first hit at or after the given time */
+  private long indexAtOrAfter(Instant time) {
+    long i = estimateIndex(time);
+    while (timestampOf(i).isBefore(time)) {
+      i++;
+    }
+    while (i > 0 && !timestampOf(i - 1).isBefore(time)) {
+      i--;
+    }
+    return i;
+  }
+
+  /** @return the sequence number of the last hit at or before the given time, -1 if none */
+  private long indexAtOrBefore(Instant time) {
+    if (time.isBefore(start)) {
+      return -1;
+    }
+    long i = estimateIndex(time);
+    while (timestampOf(i).isAfter(time)) {
+      i--;
+    }
+    while (!timestampOf(i + 1).isAfter(time)) {
+      i++;
+    }
+    return i;
+  }
+
+  private long estimateIndex(Instant time) {
+    long nanos = Duration.between(start, time).toNanos();
+    return Math.max(0, nanos / 1_000_000L * rate / 1000L);
+  }
+}
@@ -0,0 +1,193 @@
+package org.randomcodemonkey.kibatail.mock;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.randomcodemonkey.kibatail.KibaTail;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Startup benchmark measuring the time from launching kibatail until it prints its first row.
+ *
+ * <p>Starts a {@link MockKibanaServer} and launches kibatail against it in a new JVM a number of
+ * times, using the classpath of this JVM and the given JVM options. Each launch is stopped as soon
+ * as the first row has been printed.
+ *
+ * <p>With --train kibatail is instead run once within this JVM until it prints its first row, after
+ * which the JVM exits. This is used by the build to record the classes needed at startup into a
+ * class data sharing archive.
+ */
+public class StartupBenchmark {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(StartupBenchmark.class);
+
+  @Parameter(
+      names = {"--help", "-h"},
+      description = "Usage help",
+      help = true)
+  private boolean help;
+
+  @Parameter(
+      names = {"--runs", "-n"},
+      description = "Number of launches")
+  private int runs = 10;
+
+  @Parameter(
+      names = {"--jvm-options", "-j"},
+      description = "Space-separated options for the launched JVM, for example '-Xshare:off'")
+  private String jvmOptions = "";
+
+  @Parameter(
+      names = {"--train"},
+      description = "Run kibatail once within this JVM until the first row and exit")
+  private boolean train;
+
+  public StartupBenchmark setRuns(int runs) {
+    this.runs = runs;
+    return this;
+  }
+
+  public StartupBenchmark setJvmOptions(String jvmOptions) {
+    this.jvmOptions = jvmOptions;
+    return this;
+  }
+
+  /**
+   * Run the benchmark
+   *
+   * @return time to first row of each launch in milliseconds, sorted
+   */
+  public long[] run() throws IOException, InterruptedException {
+    try (MockKibanaServer server =
+        MockKibanaServer.generating(100, 256, Duration.ZERO).start()) {
+      // make sure there are rows to print right away
+      Thread.sleep(500);
+      long[] result = new long[runs];
+      for (int i = 0; i < runs; i++) {
+        result[i] = launch(server);
+        LOGGER.info("Launch {}: first row after {} ms", i + 1, result[i]);
+      }
+      Arrays.sort(result);
+      return result;
+    }
+  }
+
+  /**
+   * Run kibatail within this JVM until it prints its first row
+   *
+   * @return time to first row in milliseconds
+   */
+  public long train() throws IOException, InterruptedException {
+    try (MockKibanaServer server =
+        MockKibanaServer.generating(100, 256, Duration.ZERO).start()) {
+      Thread.sleep(500);
+      CountDownLatch firstRow = new CountDownLatch(1);
+      PrintStream out = System.out;
+      System.setOut(
+          new PrintStream(
+              new OutputStream() {
+                @Override
+                public void write(int b) {
+                  firstRow.countDown();
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                  firstRow.countDown();
+                }
+              }));
+      long start = System.nanoTime();
+      Thread tail = new Thread(() -> KibaTail.main(arguments(server)), "kibatail");
+      tail.setDaemon(true);
+      tail.start();
+      try {
+        if (!firstRow.await(30, TimeUnit.SECONDS)) {
+          throw new IOException("kibatail did not print any rows");
+        }
+        return Duration.ofNanos(System.nanoTime() - start).toMillis();
+      } finally {
+        System.setOut(out);
+      }
+    }
+  }
+
+  private static String[] arguments(MockKibanaServer server) {
+    return new String[] {
+      "--server", server.getUri().toString(), "--index", "bench*", "--fields", "message"
+    };
+  }
+
+  private long launch(MockKibanaServer server) throws IOException, InterruptedException {
+    Path java = Paths.get(System.getProperty("java.home"), "bin", "java");
+    List<String> command = new ArrayList<>();
+    command.add(java.toString());
+    for (String option : jvmOptions.trim().split("\\s+")) {
+      if (!option.isEmpty()) {
+        command.add(option);
+      }
+    }
+    command.addAll(
+        List.of(
+            "-cp",
+            System.getProperty("java.class.path"),
+            KibaTail.class.getName()));
+    command.addAll(List.of(arguments(server)));
+
+    long start = System.nanoTime();
+    Process process =
+        new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+    try (BufferedReader out =
+        new BufferedReader(
+            new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+      if (out.readLine() == null) {
+        throw new IOException("kibatail exited without printing any rows");
+      }
+      return Duration.ofNanos(System.nanoTime() - start).toMillis();
+    } finally {
+      process.destroyForcibly().waitFor();
+    }
+  }
+
+  public static void main(String[] args) {
+    try {
+      StartupBenchmark benchmark = new StartupBenchmark();
+      JCommander commander = JCommander.newBuilder().addObject(benchmark).build();
+      commander.parse(args);
+      if (benchmark.help) {
+        commander.usage();
+        System.exit(0);
+      }
+      if (benchmark.train) {
+        System.out.printf("training run: first row after %d ms%n", benchmark.train());
+        System.exit(0);
+      }
+      long[] result = benchmark.run();
+      System.out.printf(
+          "time to first row over %d launches: min %d ms, median %d ms, max %d ms%n",
+          result.length, result[0], result[result.length / 2], result[result.length - 1]);
+    } catch (ParameterException e) {
+      System.out.println(e.getMessage());
+      System.out.println();
+      System.out.println("Use --help for details");
+      System.exit(1);
+    } catch (Exception e) {
+      LOGGER.error("StartupBenchmark error: {}", e.getMessage(), e);
+      System.exit(1);
+    }
+  }
+}
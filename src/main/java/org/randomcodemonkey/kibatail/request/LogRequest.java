@@ -8,7 +8,10 @@ import java.time.ZonedDateTime;
 import java.time.temporal.ChronoField;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.stream.Collectors;
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -31,7 +34,7 @@ public class LogRequest implements JSONSerializable {
 
   private int size = 500;
 
-  private List<SortDefinition> sort = List.of(new SortDefinition());
+  private List<SortDefinition> sort = new ArrayList<>(List.of(new SortDefinition()));
 
   private final BooleanFilter query;
 
@@ -39,6 +42,8 @@ public class LogRequest implements JSONSerializable {
 
   private ZonedDateTime endOfPreviousRequest;
 
+  private final Set<String> idsAtEndOfPreviousRequest = new HashSet<>();
+
   public LogRequest(int initialLookbackSeconds) {
     query = new BooleanFilter();
     query.updateRange(
@@ -73,6 +78,11 @@ public class LogRequest implements JSONSerializable {
     this.size = size;
   }
 
+  /** @return the maximum number of items the request should return */
+  public int getSize() {
+    return size;
+  }
+
   /**
    * Add a sort for this request
    *
@@ -105,11 +115,32 @@ public class LogRequest implements JSONSerializable {
    * @returns The 'to' time of the request after the update
    */
   public void updateRange(ZonedDateTime endOfPreviousRequest) {
+    updateRange(endOfPreviousRequest, List.of());
+  }
+
+  /**
+   * Update the request 'gte' (from) and 'lte' (to) times, remembering the ids of the rows already
+   * seen at the from time.
+   *
+   * <p>Rows within the same millisecond share a timestamp, so the next request returns the rows at
+   * the from time again, and there may be rows among them that have not been seen yet. The ids
+   * are accumulated for as long as the from time stays the same.
+   *
+   * @param endOfPreviousRequest The time of the last row of the previous request
+   * @param idsAtEnd The ids of the rows of the previous request at that time
+   */
+  public void updateRange(ZonedDateTime endOfPreviousRequest, Collection<String> idsAtEnd) {
     if (endOfPreviousRequest == null) {
       updateRange();
     } else {
       query.updateRange(endOfPreviousRequest);
     }
+    if (endOfPreviousRequest == null
+        || this.endOfPreviousRequest == null
+        || !endOfPreviousRequest.isEqual(this.endOfPreviousRequest)) {
+      idsAtEndOfPreviousRequest.clear();
+    }
+    idsAtEndOfPreviousRequest.addAll(idsAtEnd);
     this.endOfPreviousRequest = endOfPreviousRequest;
   }
 
@@ -118,6 +149,11 @@ public class LogRequest implements JSONSerializable {
     return endOfPreviousRequest;
   }
 
+  /** @return the ids of the rows already seen at {@link #getEndOfPreviousRequest()} */
+  public Set<String> getIdsAtEndOfPreviousRequest() {
+    return idsAtEndOfPreviousRequest;
+  }
+
   /**
    * Add a filter to the query of this request.
    *
@@ -145,6 +181,14 @@ public class LogRequest implements JSONSerializable {
       return this;
     }
 
+    public String getField() {
+      return field;
+    }
+
+    public String getOrder() {
+      return order;
+    }
+
     public SortDefinition setUnmappedType(String unmappedType) {
       this.unmappedType = unmappedType;
       return this;
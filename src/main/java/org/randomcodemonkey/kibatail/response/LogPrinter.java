@@ -1,26 +1,62 @@
 package org.randomcodemonkey.kibatail.response;
 
+import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.stream.Collectors;
 
 public class LogPrinter {
 
-  private static final String FALLBACK_FIELDS = "log_level,logger_name,message";
-
   private static final String SEPARATOR_FIELD = "-";
   private static final String SEPARATOR_VALUE = "-";
 
   private List<String> fields;
 
+  private RowSchema schema;
+
+  private RowCollapser collapser;
+
+  private PrintStream out;
+
   public LogPrinter(String fields) {
+    this(fields, null);
+  }
+
+  /**
+   * @param fields Comma-separated list of fields to print
+   * @param collapser Collapser for repeated rows, or null to print every row
+   */
+  public LogPrinter(String fields, RowCollapser collapser) {
+    this(fields, collapser, System.out);
+  }
+
+  /**
+   * @param fields Comma-separated list of fields to print
+   * @param collapser Collapser for repeated rows, or null to print every row
+   * @param out Stream to print to
+   */
+  public LogPrinter(String fields, RowCollapser collapser, PrintStream out) {
     if (fields == null || fields.isBlank()) {
-      fields = FALLBACK_FIELDS;
+      fields = RowSchema.DEFAULT_FIELDS;
     }
     this.fields = new ArrayList<>();
     for (String field : fields.split(",")) {
       this.fields.add(field);
     }
+    List<String> schemaFields =
+        this.fields.stream().filter(f -> !SEPARATOR_FIELD.equals(f)).collect(Collectors.toList());
+    if (collapser != null) {
+      schemaFields.addAll(collapser.getFields());
+    }
+    this.schema = new RowSchema(schemaFields);
+    this.collapser = collapser;
+    this.out = out;
+  }
+
+  /** @return the schema containing the fields this printer needs from each row */
+  public RowSchema getSchema() {
+    return schema;
   }
 
   /**
@@ -30,12 +66,35 @@ public class LogPrinter {
    * @param response Response to print
    */
   public void print(LogResponse response) {
+    print(response.getRows());
+  }
+
+  /**
+   * Print the configured fields out of the given rows, ignoring any fields the rows do not contain
+   *
+   * @param rows Rows to print
+   */
+  public synchronized void print(Collection<LogRow> rows) {
     StringBuilder sb = new StringBuilder();
-    response.getRows().stream().forEach(row -> collect(sb, row));
+    rows.stream().forEach(row -> collect(sb, row));
+    if (collapser != null) {
+      collapser.flush(sb);
+    }
     if (sb.length() == 0) {
       return;
     }
-    System.out.print(sb.toString());
+    out.print(sb.toString());
+  }
+
+  /** Print the summaries of all rows collapsed so far, for example when the output ends */
+  public synchronized void flush() {
+    if (collapser == null) {
+      return;
+    }
+    StringBuilder sb = new StringBuilder();
+    collapser.flushAll(sb);
+    out.print(sb.toString());
+    out.flush();
   }
 
   private void collect(StringBuilder result, LogRow row) {
@@ -53,8 +112,11 @@ public class LogPrinter {
     if (values.isEmpty()) {
       return;
     }
-    result.append(row.getTime().toString());
-    values.stream().forEach(v -> result.append(' ').append(v));
-    result.append('\n');
+    StringBuilder line = new StringBuilder();
+    values.stream().forEach(v -> line.append(' ').append(v));
+    if (collapser != null && !collapser.accept(row, line.substring(1), result)) {
+      return;
+    }
+    result.append(row.getTime().toString()).append(line).append('\n');
   }
 }
@@ -3,9 +3,13 @@ package org.randomcodemonkey.kibatail.response;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 import org.apache.http.HttpStatus;
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 public class LogResponse {
@@ -35,7 +39,37 @@ public class LogResponse {
     return Optional.of(rows.get(rows.size() - 1).getTime());
   }
 
-  public static LogResponse ok(JSONObject data, ZonedDateTime endOfPreviousRequest) {
+  /** @return the ids of the rows at {@link #getLastResponseTime()} */
+  public List<String> getIdsAtLastResponseTime() {
+    List<String> ids = new ArrayList<>();
+    for (int i = rows.size() - 1; i >= 0; i--) {
+      LogRow row = rows.get(i);
+      if (!row.getTime().isEqual(rows.get(rows.size() - 1).getTime())) {
+        break;
+      }
+      ids.add(row.getId());
+    }
+    return ids;
+  }
+
+  public static LogResponse ok(
+      JSONObject data, ZonedDateTime endOfPreviousRequest, RowSchema schema) {
+    return ok(data, endOfPreviousRequest, Set.of(), schema);
+  }
+
+  /**
+   * @param data The response body
+   * @param endOfPreviousRequest The time of the last row of the previous request, older rows have
+   *     been seen already
+   * @param seenIds The ids of the rows at endOfPreviousRequest that have been seen already
+   * @param schema Schema for the parsed rows
+   * @return the rows of the response not seen before, oldest first
+   */
+  public static LogResponse ok(
+      JSONObject data,
+      ZonedDateTime endOfPreviousRequest,
+      Set<String> seenIds,
+      RowSchema schema) {
     LogResponse r = new LogResponse();
 
     r.statusCode = HttpStatus.SC_OK;
@@ -47,12 +81,24 @@ public class LogResponse {
       return r;
     }
 
-    for (int i = hits.getJSONArray("hits").length() - 1; i >= 0; i--) {
-      LogRow row = new LogRow(hits.getJSONArray("hits").getJSONObject(i));
-      if (endOfPreviousRequest == null || row.getTime().isAfter(endOfPreviousRequest)) {
+    JSONArray items = hits.getJSONArray("hits");
+    List<LogRow> all = new ArrayList<>(items.length());
+    for (int i = 0; i < items.length(); i++) {
+      all.add(new LogRow(items.getJSONObject(i), schema));
+    }
+    // hits are normally sorted newest first, but the request may also ask for oldest first. Rows
+    // sharing a timestamp keep their order in the response when it is oldest first.
+    if (all.size() > 1 && all.get(0).getTime().isAfter(all.get(all.size() - 1).getTime())) {
+      Collections.reverse(all);
+    }
+    for (LogRow row : all) {
+      if (endOfPreviousRequest == null
+          || row.getTime().isAfter(endOfPreviousRequest)
+          || (row.getTime().isEqual(endOfPreviousRequest) && !seenIds.contains(row.getId()))) {
         r.rows.add(row);
       }
     }
+    r.rows.sort(Comparator.comparing(LogRow::getTime));
     return r;
   }
 
@@ -3,19 +3,31 @@ package org.randomcodemonkey.kibatail.response;
 import java.time.ZonedDateTime;
 import org.json.JSONObject;
 
+/**
+ * A single log hit.
+ *
+ * <p>Only the fields of the {@link RowSchema} the row was created with are kept, the rest of the
+ * '_source' of the hit is discarded.
+ */
 public class LogRow {
 
-  private String id;
+  private final String id;
 
-  private ZonedDateTime time;
+  private final ZonedDateTime time;
 
-  private JSONObject source;
+  private final RowSchema schema;
 
-  public LogRow(JSONObject item) {
+  private final String[] values;
+
+  private final int estimatedSize;
+
+  public LogRow(JSONObject item, RowSchema schema) {
+    JSONObject source = item.getJSONObject("_source");
     this.id = item.getString("_id");
-    this.source = item.getJSONObject("_source");
     this.time = ZonedDateTime.parse(source.getString("@timestamp"));
-    source.remove("@timestamp");
+    this.schema = schema;
+    this.values = schema.project(source);
+    this.estimatedSize = estimateSize(id, values);
   }
 
   public String getId() {
@@ -26,18 +38,36 @@ public class LogRow {
     return time;
   }
 
+  public RowSchema getSchema() {
+    return schema;
+  }
+
+  /**
+   * @return the estimated memory used by this row in bytes, counting each value in full even when
+   *     the value is shared with other rows
+   */
+  public int estimateSize() {
+    return estimatedSize;
+  }
+
+  /**
+   * @param field Field name
+   * @return value of the field, or null if the row has no value for it or the field is not part of
+   *     the schema of this row
+   */
   public String getField(String field) {
-    return internalGetField(source, field);
+    int idx = schema.indexOf(field);
+    return idx < 0 ? null : values[idx];
   }
 
-  private String internalGetField(JSONObject data, String field) {
-    int idx = field.indexOf('.');
-    if (idx <= 0) {
-      return data.has(field) ? data.get(field).toString() : null;
+  private static int estimateSize(String id, String[] values) {
+    // object headers and references of the row, its time and its value array
+    int size = 96 + 16 + 4 * values.length + 40 + 2 * id.length();
+    for (String value : values) {
+      if (value != null) {
+        size += 40 + 2 * value.length();
+      }
     }
-    String key = field.substring(idx + 1);
-    String value = field.substring(0, idx);
-    JSONObject nestedData = data.optJSONObject(key);
-    return nestedData == null ? null : internalGetField(nestedData, value);
+    return size;
   }
 }
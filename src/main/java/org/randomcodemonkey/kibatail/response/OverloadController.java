@@ -0,0 +1,245 @@
+package org.randomcodemonkey.kibatail.response;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * A bounded buffer of log rows between the request loop and the output.
+ *
+ * <p>The buffer has a budget of rows and of estimated memory. While the buffer is within its budget
+ * every row is accepted. Once the budget is exceeded the configured {@link Mode} is applied:
+ *
+ * <ul>
+ *   <li>{@link Mode#BLOCK} makes {@link #offer(Collection)} wait until the output has caught up, so
+ *       no more requests are made and no rows are lost
+ *   <li>{@link Mode#SAMPLE} accepts only a fraction of the rows given by the sample rate
+ *   <li>{@link Mode#SEVERITY} accepts only rows with one of the configured log levels
+ * </ul>
+ *
+ * <p>In the shedding modes the buffer never grows beyond twice its budget, any rows beyond that are
+ * shed regardless of the mode. All shed rows are counted.
+ */
+public class OverloadController {
+
+  public enum Mode {
+    BLOCK,
+    SAMPLE,
+    SEVERITY;
+
+    public static Mode parse(String mode) {
+      try {
+        return valueOf(mode.toUpperCase(Locale.ROOT));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException(
+            "Overload mode '" + mode + "' is invalid, must be one of block, sample, severity");
+      }
+    }
+  }
+
+  public static final String DEFAULT_LEVEL_FIELD = "log_level";
+
+  public static final String DEFAULT_KEEP_LEVELS = "WARN,ERROR,FATAL";
+
+  private final Mode mode;
+
+  private final int maxRows;
+
+  private final long maxBytes;
+
+  private final Deque<LogRow> rows = new ArrayDeque<>();
+
+  private long bytes = 0;
+
+  private double sampleRate = 0.1;
+
+  private double sampleCredit = 0;
+
+  private String levelField = DEFAULT_LEVEL_FIELD;
+
+  private Set<String> keepLevels = parseLevels(DEFAULT_KEEP_LEVELS);
+
+  private long accepted = 0;
+
+  private long shed = 0;
+
+  private long shedBytes = 0;
+
+  private long blockedNanos = 0;
+
+  /**
+   * @param mode Mode applied when the budget is exceeded
+   * @param maxRows Maximum number of buffered rows
+   * @param maxBytes Maximum estimated memory of buffered rows
+   */
+  public OverloadController(Mode mode, int maxRows, long maxBytes) {
+    if (maxRows <= 0 || maxBytes <= 0) {
+      throw new IllegalArgumentException("Overload budget must be positive");
+    }
+    this.mode = mode;
+    this.maxRows = maxRows;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Set the fraction of rows accepted in {@link Mode#SAMPLE} while over budget
+   *
+   * @param sampleRate Fraction between 0 and 1
+   */
+  public OverloadController setSampleRate(double sampleRate) {
+    if (sampleRate < 0 || sampleRate > 1) {
+      throw new IllegalArgumentException("Sample rate must be between 0 and 1");
+    }
+    this.sampleRate = sampleRate;
+    return this;
+  }
+
+  /**
+   * Set the levels accepted in {@link Mode#SEVERITY} while over budget
+   *
+   * @param levels Comma-separated list of log levels
+   */
+  public OverloadController setKeepLevels(String levels) {
+    this.keepLevels = parseLevels(levels);
+    return this;
+  }
+
+  /**
+   * Set the field holding the log level of a row
+   *
+   * @param levelField Field name
+   */
+  public OverloadController setLevelField(String levelField) {
+    this.levelField = levelField;
+    return this;
+  }
+
+  public Mode getMode() {
+    return mode;
+  }
+
+  public int getMaxRows() {
+    return maxRows;
+  }
+
+  /** @return the fields this controller needs from each row */
+  public List<String> getFields() {
+    return mode == Mode.SEVERITY ? List.of(levelField) : List.of();
+  }
+
+  /**
+   * Add rows to the buffer, applying the mode of this controller for rows over the budget
+   *
+   * @param offered Rows to add
+   * @throws InterruptedException if interrupted while waiting in {@link Mode#BLOCK}
+   */
+  public synchronized void offer(Collection<LogRow> offered) throws InterruptedException {
+    for (LogRow row : offered) {
+      long size = row.estimateSize();
+      if (mode == Mode.BLOCK) {
+        // always accept a row into an empty buffer, a single row may be larger than the budget
+        if (!rows.isEmpty() && overBudget(1, size)) {
+          long start = System.nanoTime();
+          // wake up the output for the rows added so far before waiting for it
+          notifyAll();
+          while (!rows.isEmpty() && overBudget(1, size)) {
+            wait();
+          }
+          blockedNanos += System.nanoTime() - start;
+        }
+      } else if (overBudget(2, size) || (overBudget(1, size) && !keep(row))) {
+        shed++;
+        shedBytes += size;
+        continue;
+      }
+      rows.add(row);
+      bytes += size;
+      accepted++;
+    }
+    notifyAll();
+  }
+
+  /**
+   * Take up to the given number of buffered rows, waiting until at least one row is available
+   *
+   * @param max Maximum number of rows to take
+   * @param timeout Maximum time to wait
+   * @param unit Unit of timeout
+   * @return the rows taken, empty if none became available within the timeout
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public synchronized List<LogRow> take(int max, long timeout, TimeUnit unit)
+      throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (rows.isEmpty()) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        return List.of();
+      }
+      TimeUnit.NANOSECONDS.timedWait(this, remaining);
+    }
+    List<LogRow> result = new ArrayList<>(Math.min(max, rows.size()));
+    while (result.size() < max && !rows.isEmpty()) {
+      LogRow row = rows.poll();
+      bytes -= row.estimateSize();
+      result.add(row);
+    }
+    notifyAll();
+    return result;
+  }
+
+  /** @return the number of rows currently buffered */
+  public synchronized int size() {
+    return rows.size();
+  }
+
+  /** @return the number of rows accepted into the buffer */
+  public synchronized long getAccepted() {
+    return accepted;
+  }
+
+  /** @return the number of rows shed because the buffer was over its budget */
+  public synchronized long getShed() {
+    return shed;
+  }
+
+  /** @return the estimated memory of the rows shed */
+  public synchronized long getShedBytes() {
+    return shedBytes;
+  }
+
+  /** @return the total time spent waiting for the output in {@link Mode#BLOCK} */
+  public synchronized long getBlockedMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(blockedNanos);
+  }
+
+  private boolean overBudget(int factor, long size) {
+    return rows.size() + 1 > (long) factor * maxRows || bytes + size > factor * maxBytes;
+  }
+
+  private boolean keep(LogRow row) {
+    if (mode == Mode.SEVERITY) {
+      String level = row.getField(levelField);
+      return level != null && keepLevels.contains(level.toUpperCase(Locale.ROOT));
+    }
+    sampleCredit += sampleRate;
+    if (sampleCredit >= 1) {
+      sampleCredit -= 1;
+      return true;
+    }
+    return false;
+  }
+
+  private static Set<String> parseLevels(String levels) {
+    return List.of(levels.split(",")).stream()
+        .map(l -> l.trim().toUpperCase(Locale.ROOT))
+        .filter(l -> !l.isEmpty())
+        .collect(Collectors.toSet());
+  }
+}
@@ -0,0 +1,217 @@
+package org.randomcodemonkey.kibatail.response;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collapses repeated log rows in the output.
+ *
+ * <p>Rows are fingerprinted by a set of fields. Numbers, hexadecimal values and long identifiers
+ * in the field values are normalized before hashing, so rows that only differ by for example a
+ * request id or a line number in a stack trace get the same fingerprint. The first row of a
+ * fingerprint is printed and further rows with the same fingerprint are counted until the window
+ * of the fingerprint ends, at which point a single 'xN' summary line is printed instead of them.
+ *
+ * <p>A bounded number of recent fingerprints is kept, the least recently seen fingerprint is
+ * dropped (and its summary printed) when the limit is reached.
+ */
+public class RowCollapser {
+
+  public static final String DEFAULT_FIELDS = "service_name,message,stack_trace";
+
+  public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private static final char PLACEHOLDER = '#';
+
+  private static final char FIELD_SEPARATOR = '\u0000';
+
+  /** Alphanumeric tokens containing a digit at least this long are treated as identifiers */
+  private static final int IDENTIFIER_LENGTH = 16;
+
+  /** Hexadecimal tokens at least this long are treated as identifiers even without digits */
+  private static final int HEX_IDENTIFIER_LENGTH = 8;
+
+  private final List<String> fields;
+
+  private final long windowMillis;
+
+  private final Clock clock;
+
+  private final List<String> pending = new ArrayList<>();
+
+  private final Map<Long, Entry> entries;
+
+  public RowCollapser(List<String> fields, Duration window) {
+    this(fields, window, DEFAULT_MAX_ENTRIES, Clock.systemUTC());
+  }
+
+  RowCollapser(List<String> fields, Duration window, int maxEntries, Clock clock) {
+    this.fields = List.copyOf(fields);
+    this.windowMillis = window.toMillis();
+    this.clock = clock;
+    this.entries =
+        new LinkedHashMap<>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+            if (size() > maxEntries) {
+              eldest.getValue().summarize(pending);
+              return true;
+            }
+            return false;
+          }
+        };
+  }
+
+  /** @return the fields rows are fingerprinted by */
+  public List<String> getFields() {
+    return fields;
+  }
+
+  /**
+   * Check whether a row should be printed, or only counted as a repeat of an earlier row
+   *
+   * @param row Row to check
+   * @param line The formatted row without the timestamp, used for the summary line
+   * @param result Any summaries that are due are appended here
+   * @return true if the row should be printed
+   */
+  public boolean accept(LogRow row, String line, StringBuilder result) {
+    long now = clock.millis();
+    long fingerprint = fingerprint(row);
+    Entry entry = entries.get(fingerprint);
+    boolean print;
+    if (entry == null) {
+      entries.put(fingerprint, new Entry(line, now));
+      print = true;
+    } else if (now - entry.windowStart < windowMillis) {
+      entry.repeats++;
+      entry.lastTime = row.getTime();
+      print = false;
+    } else {
+      entry.summarize(pending);
+      entry.windowStart = now;
+      print = true;
+    }
+    drain(result);
+    return print;
+  }
+
+  /**
+   * Append the summaries of all fingerprints whose window has ended
+   *
+   * @param result Summaries are appended here
+   */
+  public void flush(StringBuilder result) {
+    long now = clock.millis();
+    Iterator<Entry> it = entries.values().iterator();
+    while (it.hasNext()) {
+      Entry entry = it.next();
+      if (now - entry.windowStart >= windowMillis) {
+        entry.summarize(pending);
+        it.remove();
+      }
+    }
+    drain(result);
+  }
+
+  /**
+   * Append the summaries of all fingerprints regardless of their window, for example when the
+   * output ends
+   *
+   * @param result Summaries are appended here
+   */
+  public void flushAll(StringBuilder result) {
+    entries.values().forEach(entry -> entry.summarize(pending));
+    entries.clear();
+    drain(result);
+  }
+
+  private void drain(StringBuilder result) {
+    if (pending.isEmpty()) {
+      return;
+    }
+    pending.forEach(s -> result.append(s).append('\n'));
+    pending.clear();
+  }
+
+  long fingerprint(LogRow row) {
+    long hash = FNV_OFFSET;
+    for (String field : fields) {
+      String value = row.getField(field);
+      if (value != null) {
+        hash = hashNormalized(hash, value);
+      }
+      hash = (hash ^ FIELD_SEPARATOR) * FNV_PRIME;
+    }
+    return hash;
+  }
+
+  /**
+   * Hash the given value, replacing each alphanumeric token that looks like a number or an
+   * identifier with a placeholder
+   */
+  static long hashNormalized(long hash, String value) {
+    int length = value.length();
+    int i = 0;
+    while (i < length) {
+      char c = value.charAt(i);
+      if (!Character.isLetterOrDigit(c)) {
+        hash = (hash ^ c) * FNV_PRIME;
+        i++;
+        continue;
+      }
+      int start = i;
+      boolean digit = false;
+      boolean hex = true;
+      while (i < length && Character.isLetterOrDigit(value.charAt(i))) {
+        char t = value.charAt(i);
+        digit |= t >= '0' && t <= '9';
+        hex &= Character.digit(t, 16) >= 0;
+        i++;
+      }
+      int tokenLength = i - start;
+      if ((hex && (digit || tokenLength >= HEX_IDENTIFIER_LENGTH))
+          || (digit && tokenLength >= IDENTIFIER_LENGTH)) {
+        hash = (hash ^ PLACEHOLDER) * FNV_PRIME;
+      } else {
+        for (int j = start; j < i; j++) {
+          hash = (hash ^ value.charAt(j)) * FNV_PRIME;
+        }
+      }
+    }
+    return hash;
+  }
+
+  private static class Entry {
+
+    private final String line;
+
+    private long windowStart;
+
+    private int repeats = 0;
+
+    private ZonedDateTime lastTime;
+
+    private Entry(String line, long windowStart) {
+      this.line = line;
+      this.windowStart = windowStart;
+    }
+
+    private void summarize(List<String> result) {
+      if (repeats > 0) {
+        result.add(lastTime.toString() + " x" + repeats + " " + line);
+      }
+      repeats = 0;
+    }
+  }
+}
@@ -0,0 +1,122 @@
+package org.randomcodemonkey.kibatail.response;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.json.JSONObject;
+
+/**
+ * The set of fields that are kept from the '_source' of each log hit.
+ *
+ * <p>A {@link LogRow} only stores the values of the fields of its schema, in a flat array indexed
+ * by the position of the field in the schema. Values are deduplicated through the {@link
+ * StringInterner} of the schema, so rows sharing a schema also share repeated values.
+ */
+public class RowSchema {
+
+  /** Fields used when no fields are configured */
+  public static final String DEFAULT_FIELDS = "log_level,logger_name,message";
+
+  private final List<String> fields;
+
+  private final Map<String, Integer> indexes = new HashMap<>();
+
+  private final StringInterner interner;
+
+  public RowSchema(List<String> fields) {
+    this(fields, new StringInterner());
+  }
+
+  public RowSchema(List<String> fields, StringInterner interner) {
+    List<String> unique = new ArrayList<>();
+    for (String field : fields) {
+      if (!indexes.containsKey(field)) {
+        indexes.put(field, unique.size());
+        unique.add(field);
+      }
+    }
+    this.fields = Collections.unmodifiableList(unique);
+    this.interner = interner;
+  }
+
+  /**
+   * Create a schema out of a comma-separated list of fields
+   *
+   * @param fields Comma-separated list of fields, {@link #DEFAULT_FIELDS} is used if blank
+   * @return RowSchema for the given fields
+   */
+  public static RowSchema parse(String fields) {
+    if (fields == null || fields.isBlank()) {
+      fields = DEFAULT_FIELDS;
+    }
+    return new RowSchema(List.of(fields.split(",")));
+  }
+
+  /**
+   * Create a schema with the fields of this schema followed by the given fields. The new schema
+   * shares the interner of this schema.
+   *
+   * @param extraFields Fields to add
+   * @return RowSchema with the additional fields
+   */
+  public RowSchema with(List<String> extraFields) {
+    List<String> combined = new ArrayList<>(fields);
+    combined.addAll(extraFields);
+    return new RowSchema(combined, interner);
+  }
+
+  public List<String> getFields() {
+    return fields;
+  }
+
+  /**
+   * @param field Field name
+   * @return position of the field in this schema, or -1 if the field is not part of this schema
+   */
+  public int indexOf(String field) {
+    return indexes.getOrDefault(field, -1);
+  }
+
+  public StringInterner getInterner() {
+    return interner;
+  }
+
+  /**
+   * Extract the values of the fields of this schema out of a '_source' object
+   *
+   * @param source The '_source' of a log hit
+   * @return values of the fields of this schema, null for any field not present in source
+   */
+  String[] project(JSONObject source) {
+    String[] values = new String[fields.size()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = interner.intern(fields.get(i), resolve(source, fields.get(i)));
+    }
+    return values;
+  }
+
+  /**
+   * Resolve a possibly nested field. Elasticsearch may return nested fields either as nested
+   * objects or as keys which contain '.', both forms are supported.
+   */
+  private static String resolve(JSONObject data, String field) {
+    if (data.has(field)) {
+      Object value = data.get(field);
+      return value == JSONObject.NULL ? null : value.toString();
+    }
+    int idx = field.indexOf('.');
+    while (idx > 0) {
+      JSONObject nestedData = data.optJSONObject(field.substring(0, idx));
+      if (nestedData != null) {
+        String value = resolve(nestedData, field.substring(idx + 1));
+        if (value != null) {
+          return value;
+        }
+      }
+      idx = field.indexOf('.', idx + 1);
+    }
+    return null;
+  }
+}
@@ -0,0 +1,86 @@
+package org.randomcodemonkey.kibatail.response;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bounded per-field dictionaries used to deduplicate repeated field values of log rows.
+ *
+ * <p>Low-cardinality values such as log levels or service names are repeated in nearly every row.
+ * Values up to a maximum length are stored in the dictionary of their field the first time they are
+ * seen and the same instance is returned for every later occurrence. A field whose dictionary fills
+ * up, such as a message or an identifier, is high-cardinality: its dictionary is dropped and its
+ * values are returned as-is from then on, so it can neither grow memory without bound nor crowd
+ * out the values of other fields.
+ */
+public class StringInterner {
+
+  public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+  public static final int DEFAULT_MAX_LENGTH = 128;
+
+  private static final Map<String, String> HIGH_CARDINALITY = Collections.emptyMap();
+
+  private final Map<String, Map<String, String>> dictionaries = new ConcurrentHashMap<>();
+
+  private final int maxEntries;
+
+  private final int maxLength;
+
+  public StringInterner() {
+    this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_LENGTH);
+  }
+
+  /**
+   * @param maxEntries Maximum number of distinct values kept per field, a field with more values
+   *     is not interned
+   * @param maxLength Maximum length of a value that is considered for interning
+   */
+  public StringInterner(int maxEntries, int maxLength) {
+    this.maxEntries = maxEntries;
+    this.maxLength = maxLength;
+  }
+
+  /**
+   * Return the shared instance of the given value, adding it to the dictionary of the field if the
+   * field is not high-cardinality
+   *
+   * @param field Field the value belongs to
+   * @param value Value to intern, may be null
+   * @return The shared instance of value, or value itself if it can not be interned
+   */
+  public String intern(String field, String value) {
+    if (value == null || value.length() > maxLength) {
+      return value;
+    }
+    Map<String, String> values =
+        dictionaries.computeIfAbsent(field, f -> new ConcurrentHashMap<>());
+    if (values == HIGH_CARDINALITY) {
+      return value;
+    }
+    String existing = values.get(value);
+    if (existing != null) {
+      return existing;
+    }
+    if (values.size() >= maxEntries) {
+      dictionaries.put(field, HIGH_CARDINALITY);
+      return value;
+    }
+    existing = values.putIfAbsent(value, value);
+    return existing == null ? value : existing;
+  }
+
+  /**
+   * @param field Field name
+   * @return true if the field has been found to have too many distinct values to intern
+   */
+  public boolean isHighCardinality(String field) {
+    return dictionaries.get(field) == HIGH_CARDINALITY;
+  }
+
+  /** @return the number of distinct values currently in all dictionaries */
+  public int size() {
+    return dictionaries.values().stream().mapToInt(Map::size).sum();
+  }
+}
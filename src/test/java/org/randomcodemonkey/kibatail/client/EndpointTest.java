@@ -0,0 +1,71 @@
+package org.randomcodemonkey.kibatail.client;
+
+import java.net.URI;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class EndpointTest {
+
+  @Test
+  public void testLatencyPercentile() {
+    Endpoint endpoint = new Endpoint(URI.create("http://localhost:5601"));
+    Assertions.assertEquals(-1, endpoint.latencyPercentile(95));
+    for (int i = 1; i <= 100; i++) {
+      endpoint.success(i);
+    }
+    // only the most recent samples are kept
+    Assertions.assertEquals(100, endpoint.latencyPercentile(100));
+    Assertions.assertEquals(37, endpoint.latencyPercentile(0));
+    Assertions.assertEquals(97, endpoint.latencyPercentile(95));
+  }
+
+  @Test
+  public void testAbandonedRequestRaisesEstimateWithoutSample() {
+    Endpoint endpoint = new Endpoint(URI.create("http://localhost:5601"), 1, 1000);
+    Assertions.assertEquals(-1, endpoint.estimatedLatency());
+    endpoint.abandoned(2000);
+    Assertions.assertEquals(2000, endpoint.estimatedLatency());
+    Assertions.assertEquals(-1, endpoint.latencyPercentile(50));
+    Assertions.assertFalse(endpoint.isEjected());
+  }
+
+  @Test
+  public void testAbandonedRequestsOnlyRaiseEstimate() {
+    Endpoint endpoint = new Endpoint(URI.create("http://localhost:5601"));
+    for (int i = 0; i < 10; i++) {
+      endpoint.success(100);
+    }
+    // a hedge abandoned shortly after it was sent says nothing about the endpoint being fast
+    endpoint.abandoned(10);
+    Assertions.assertEquals(100, endpoint.estimatedLatency());
+    Assertions.assertEquals(100, endpoint.latencyPercentile(95));
+
+    endpoint.abandoned(500);
+    Assertions.assertEquals(500, endpoint.estimatedLatency());
+    // the hedge delay only uses completed requests
+    Assertions.assertEquals(100, endpoint.latencyPercentile(95));
+
+    endpoint.success(100);
+    Assertions.assertEquals(100, endpoint.estimatedLatency());
+  }
+
+  @Test
+  public void testEjectAndRecheck() throws InterruptedException {
+    Endpoint endpoint = new Endpoint(URI.create("http://localhost:5601"), 2, 50);
+    endpoint.failure();
+    Assertions.assertTrue(endpoint.isAvailable());
+    endpoint.failure();
+    Assertions.assertTrue(endpoint.isEjected());
+    Assertions.assertFalse(endpoint.isAvailable());
+
+    Thread.sleep(60);
+    Assertions.assertTrue(endpoint.isAvailable());
+    endpoint.failure();
+    Assertions.assertFalse(endpoint.isAvailable());
+
+    Thread.sleep(60);
+    endpoint.success(1);
+    Assertions.assertFalse(endpoint.isEjected());
+    Assertions.assertTrue(endpoint.isAvailable());
+  }
+}
@@ -0,0 +1,94 @@
+package org.randomcodemonkey.kibatail.client;
+
+import java.time.Duration;
+import java.util.List;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.randomcodemonkey.kibatail.mock.MockKibanaServer;
+import org.randomcodemonkey.kibatail.response.LogResponse;
+
+public class KibaHttpClientTest {
+
+  private static KibaHttpClient client(MockKibanaServer first, MockKibanaServer second)
+      throws Exception {
+    return new KibaHttpClient(List.of(first.getUri(), second.getUri()), "mock*", 60);
+  }
+
+  @Test
+  public void testSlowPrimaryIsHedged() throws Exception {
+    try (MockKibanaServer slow =
+            MockKibanaServer.generating(100, 100, Duration.ZERO)
+                .setResponseDelay(Duration.ofSeconds(10))
+                .start();
+        MockKibanaServer fast = MockKibanaServer.generating(100, 100, Duration.ZERO).start();
+        KibaHttpClient client = client(slow, fast)) {
+      Endpoint primary = client.getEndpoints().get(0);
+      Endpoint hedge = client.getEndpoints().get(1);
+
+      long start = System.nanoTime();
+      LogResponse response = client.executeRequest();
+      long millis = (System.nanoTime() - start) / 1_000_000;
+      Assertions.assertEquals(200, response.getStatusCode());
+      // answered by the hedge sent after the default hedge delay, not after the slow response
+      Assertions.assertTrue(millis >= 2000 && millis < 5000, "took " + millis + " ms");
+      Assertions.assertEquals(1, slow.getRequests());
+      Assertions.assertEquals(1, fast.getRequests());
+
+      // the aborted request is evidence of slowness, not a failure
+      Assertions.assertEquals(0, primary.getConsecutiveFailures());
+      Assertions.assertEquals(-1, primary.latencyPercentile(0));
+      Assertions.assertTrue(primary.estimatedLatency() >= 2_000_000_000L);
+      Assertions.assertTrue(hedge.estimatedLatency() < primary.estimatedLatency());
+
+      // the fast endpoint is now tried first and answers without a hedge
+      start = System.nanoTime();
+      client.executeRequest();
+      Assertions.assertTrue((System.nanoTime() - start) / 1_000_000 < 2000);
+      Assertions.assertEquals(1, slow.getRequests());
+      Assertions.assertEquals(2, fast.getRequests());
+    }
+  }
+
+  @Test
+  public void testFailingEndpointIsEjected() throws Exception {
+    try (MockKibanaServer failing =
+            MockKibanaServer.generating(100, 100, Duration.ZERO).setFailureStatus(503).start();
+        MockKibanaServer healthy = MockKibanaServer.generating(100, 100, Duration.ZERO).start();
+        KibaHttpClient client = client(failing, healthy)) {
+      Endpoint first = client.getEndpoints().get(0);
+
+      for (int i = 1; i <= Endpoint.DEFAULT_EJECT_AFTER_FAILURES; i++) {
+        // fails over to the healthy endpoint
+        Assertions.assertEquals(200, client.executeRequest().getStatusCode());
+        Assertions.assertEquals(i, failing.getRequests());
+      }
+      Assertions.assertTrue(first.isEjected());
+
+      // an ejected endpoint gets no requests until the re-check interval has elapsed
+      Assertions.assertEquals(200, client.executeRequest().getStatusCode());
+      Assertions.assertEquals(Endpoint.DEFAULT_EJECT_AFTER_FAILURES, failing.getRequests());
+      Assertions.assertEquals(Endpoint.DEFAULT_EJECT_AFTER_FAILURES + 1, healthy.getRequests());
+    }
+  }
+
+  @Test
+  public void testAllEjectedStillTried() throws Exception {
+    try (MockKibanaServer first =
+            MockKibanaServer.generating(100, 100, Duration.ZERO).setFailureStatus(503).start();
+        MockKibanaServer second =
+            MockKibanaServer.generating(100, 100, Duration.ZERO).setFailureStatus(503).start();
+        KibaHttpClient client = client(first, second)) {
+      for (int i = 0; i < Endpoint.DEFAULT_EJECT_AFTER_FAILURES; i++) {
+        Assertions.assertEquals(503, client.executeRequest().getStatusCode());
+      }
+      Assertions.assertTrue(client.getEndpoints().stream().allMatch(Endpoint::isEjected));
+
+      // with every endpoint ejected requests still go out, and a recovered endpoint is reinstated
+      first.setFailureStatus(0);
+      second.setFailureStatus(0);
+      Assertions.assertEquals(200, client.executeRequest().getStatusCode());
+      Assertions.assertEquals(
+          1, client.getEndpoints().stream().filter(e -> !e.isEjected()).count());
+    }
+  }
+}
@@ -0,0 +1,186 @@
+package org.randomcodemonkey.kibatail.client;
+
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.randomcodemonkey.kibatail.mock.MockKibanaServer;
+import org.randomcodemonkey.kibatail.response.LogRow;
+import org.randomcodemonkey.kibatail.response.RowSchema;
+
+public class LogPublisherTest {
+
+  private static LogPublisher publisher(MockKibanaServer server) throws Exception {
+    KibaHttpClient client = new KibaHttpClient(server.getUri(), "mock*", 60);
+    client.setSchema(RowSchema.parse("seq"));
+    return new LogPublisher(client).setPollInterval(Duration.ofMillis(50)).setMaxPageSize(100);
+  }
+
+  @Test
+  public void testDemandDrivesPolling() throws Exception {
+    try (MockKibanaServer server =
+        MockKibanaServer.generating(1000, 100, Duration.ZERO).start()) {
+      Thread.sleep(300);
+      TestSubscriber<LogRow> subscriber = new TestSubscriber<>(25);
+      publisher(server).subscribe(subscriber);
+
+      subscriber.subscription.request(10);
+      Assertions.assertTrue(subscriber.received.await(5, TimeUnit.SECONDS));
+      Thread.sleep(200);
+      // demand was met with a single request of page size 10, and polling stopped
+      Assertions.assertEquals(10, subscriber.items.size());
+      Assertions.assertEquals(1, server.getRequests());
+
+      subscriber.subscription.request(15);
+      Assertions.assertTrue(subscriber.done.await(5, TimeUnit.SECONDS));
+      Thread.sleep(200);
+      Assertions.assertEquals(25, subscriber.items.size());
+      for (int i = 0; i < 25; i++) {
+        Assertions.assertEquals(String.valueOf(i), subscriber.items.get(i).getField("seq"));
+      }
+      Assertions.assertEquals(2, server.getRequests());
+      subscriber.subscription.cancel();
+    }
+  }
+
+  @Test
+  public void testRowsSharingTimestamp() throws Exception {
+    // five rows per millisecond, with millisecond timestamps like Elasticsearch
+    try (MockKibanaServer server =
+        MockKibanaServer.generating(5000, 100, Duration.ZERO)
+            .setTimestampPrecision(ChronoUnit.MILLIS)
+            .start()) {
+      Thread.sleep(100);
+      TestSubscriber<LogRow> subscriber = new TestSubscriber<>(20);
+      publisher(server).subscribe(subscriber);
+      for (int i = 1; i <= 20; i++) {
+        subscriber.subscription.request(1);
+        for (int wait = 0; wait < 50 && subscriber.items.size() < i; wait++) {
+          Thread.sleep(100);
+        }
+        Assertions.assertEquals(i, subscriber.items.size());
+      }
+      subscriber.subscription.cancel();
+      for (int i = 0; i < 20; i++) {
+        Assertions.assertEquals(String.valueOf(i), subscriber.items.get(i).getField("seq"));
+      }
+    }
+  }
+
+  @Test
+  public void testMoreRowsPerMillisecondThanPageSize() throws Exception {
+    // 200 rows per millisecond with a page size of 100
+    try (MockKibanaServer server =
+        MockKibanaServer.generating(200_000, 100, Duration.ZERO).start()) {
+      Thread.sleep(100);
+      TestSubscriber<LogRow> subscriber = new TestSubscriber<>(300);
+      publisher(server).subscribe(subscriber);
+      subscriber.subscription.request(300);
+      Assertions.assertTrue(subscriber.done.await(5, TimeUnit.SECONDS));
+      subscriber.subscription.cancel();
+      for (int i = 0; i < 300; i++) {
+        Assertions.assertEquals(String.valueOf(i), subscriber.items.get(i).getField("seq"));
+      }
+
+      TestSubscriber<List<LogRow>> batches = new TestSubscriber<>(4);
+      new LogPublisher(new KibaHttpClient(server.getUri(), "mock*", 60))
+          .setPollInterval(Duration.ofMillis(50))
+          .setMaxPageSize(100)
+          .batches()
+          .subscribe(batches);
+      batches.subscription.request(4);
+      Assertions.assertTrue(batches.done.await(5, TimeUnit.SECONDS));
+      batches.subscription.cancel();
+      for (List<LogRow> batch : batches.items) {
+        Assertions.assertEquals(100, batch.size());
+      }
+    }
+  }
+
+  @Test
+  public void testBatches() throws Exception {
+    try (MockKibanaServer server =
+        MockKibanaServer.generating(1000, 100, Duration.ZERO).start()) {
+      Thread.sleep(300);
+      TestSubscriber<List<LogRow>> subscriber = new TestSubscriber<>(3);
+      publisher(server).batches().subscribe(subscriber);
+      subscriber.subscription.request(3);
+      Assertions.assertTrue(subscriber.done.await(5, TimeUnit.SECONDS));
+      subscriber.subscription.cancel();
+
+      long seq = 0;
+      for (List<LogRow> batch : subscriber.items) {
+        Assertions.assertFalse(batch.isEmpty());
+        Assertions.assertTrue(batch.size() <= 100);
+        for (LogRow row : batch) {
+          Assertions.assertEquals(String.valueOf(seq++), row.getField("seq"));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testInvalidDemandAndSecondSubscriber() throws Exception {
+    try (MockKibanaServer server =
+        MockKibanaServer.generating(10, 100, Duration.ZERO).start()) {
+      LogPublisher publisher = publisher(server);
+      TestSubscriber<LogRow> first = new TestSubscriber<>(1);
+      publisher.subscribe(first);
+      first.subscription.request(0);
+      Assertions.assertTrue(first.failed.await(5, TimeUnit.SECONDS));
+      Assertions.assertTrue(first.error instanceof IllegalArgumentException);
+
+      TestSubscriber<LogRow> second = new TestSubscriber<>(1);
+      publisher.subscribe(second);
+      Assertions.assertTrue(second.failed.await(5, TimeUnit.SECONDS));
+      Assertions.assertTrue(second.error instanceof IllegalStateException);
+    }
+  }
+
+  private static class TestSubscriber<T> implements Flow.Subscriber<T> {
+
+    private final List<T> items = new CopyOnWriteArrayList<>();
+
+    private final CountDownLatch received = new CountDownLatch(1);
+
+    private final CountDownLatch done;
+
+    private final CountDownLatch failed = new CountDownLatch(1);
+
+    private volatile Flow.Subscription subscription;
+
+    private volatile Throwable error;
+
+    private TestSubscriber(int expected) {
+      this.done = new CountDownLatch(expected);
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      this.subscription = subscription;
+    }
+
+    @Override
+    public void onNext(T item) {
+      items.add(item);
+      if (items.size() == 10) {
+        received.countDown();
+      }
+      done.countDown();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      error = throwable;
+      failed.countDown();
+    }
+
+    @Override
+    public void onComplete() {}
+  }
+}
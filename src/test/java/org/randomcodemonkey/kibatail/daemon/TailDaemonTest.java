@@ -0,0 +1,193 @@
+package org.randomcodemonkey.kibatail.daemon;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.randomcodemonkey.kibatail.mock.MockKibanaServer;
+
+public class TailDaemonTest {
+
+  @TempDir Path dir;
+
+  private static class Client implements AutoCloseable {
+
+    private final Socket socket;
+
+    private final BufferedReader in;
+
+    Client(TailDaemon daemon, Path tokenFile, Subscription subscription) throws IOException {
+      socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort());
+      in = TailDaemon.open(socket, tokenFile, subscription);
+      socket.setSoTimeout(5000);
+    }
+
+    List<String> lines(int count) throws IOException {
+      List<String> lines = new ArrayList<>();
+      while (lines.size() < count) {
+        lines.add(in.readLine());
+      }
+      return lines;
+    }
+
+    @Override
+    public void close() throws IOException {
+      socket.close();
+    }
+  }
+
+  private TailDaemon start() throws IOException {
+    TailDaemon daemon = new TailDaemon(0, 1000, dir.resolve("daemon.token"));
+    Thread thread = new Thread(daemon);
+    thread.setDaemon(true);
+    thread.start();
+    return daemon;
+  }
+
+  private static Subscription subscription(MockKibanaServer server, String... patterns) {
+    return new Subscription()
+        .setServers(List.of(server.getUri().toString()))
+        .setIndex("mock*")
+        .setPatterns(List.of(patterns))
+        .setFields("seq");
+  }
+
+  private static void awaitUpstreams(TailDaemon daemon, int count) throws Exception {
+    for (int i = 0; i < 50 && daemon.getUpstreamCount() != count; i++) {
+      Thread.sleep(100);
+    }
+    Assertions.assertEquals(count, daemon.getUpstreamCount());
+  }
+
+  @Test
+  public void testIdenticalSubscriptionsShareUpstream() throws Exception {
+    try (MockKibanaServer server = MockKibanaServer.generating(100, 100, Duration.ZERO).start()) {
+      TailDaemon daemon = start();
+      Path token = dir.resolve("daemon.token");
+      Assertions.assertEquals(
+          "rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(token)));
+
+      try (Client first = new Client(daemon, token, subscription(server, "service_name:orders"));
+          Client second = new Client(daemon, token, subscription(server, "service_name:orders"))) {
+        Assertions.assertEquals(1, daemon.getUpstreamCount());
+        for (String line : first.lines(10)) {
+          Assertions.assertTrue(line.matches("\\S+ \\d+"), line);
+        }
+        for (String line : second.lines(10)) {
+          Assertions.assertTrue(line.matches("\\S+ \\d+"), line);
+        }
+        long requests = server.getRequests();
+        Thread.sleep(1500);
+        // one poll loop for both subscribers
+        Assertions.assertTrue(server.getRequests() - requests <= 2);
+
+        // buffered rows are only replayed to a subscriber if they have all of its fields
+        Subscription same = subscription(server, "service_name:orders");
+        TailDaemon.Attachment replayed = daemon.subscribe(same);
+        Subscription wider = subscription(server, "service_name:orders").setFields("seq,level");
+        TailDaemon.Attachment current = daemon.subscribe(wider);
+        Assertions.assertSame(replayed.upstream, current.upstream);
+        Assertions.assertEquals(0, replayed.cursor);
+        Assertions.assertTrue(current.cursor >= 20);
+        daemon.unsubscribe(same, replayed.upstream);
+        daemon.unsubscribe(wider, current.upstream);
+
+        // different match patterns get their own query
+        try (Client third = new Client(daemon, token, subscription(server))) {
+          Assertions.assertEquals(2, daemon.getUpstreamCount());
+        }
+        awaitUpstreams(daemon, 1);
+      }
+      awaitUpstreams(daemon, 0);
+      daemon.close();
+      Assertions.assertFalse(Files.exists(token));
+    }
+  }
+
+  @Test
+  public void testInvalidSubscription() throws Exception {
+    TailDaemon daemon = start();
+    Subscription invalid =
+        new Subscription()
+            .setServers(List.of("http://localhost:1"))
+            .setIndex("mock*")
+            .setPatterns(List.of("no-field"));
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort())) {
+      Assertions.assertThrows(
+          IllegalArgumentException.class,
+          () -> TailDaemon.open(socket, dir.resolve("daemon.token"), invalid));
+    }
+    Assertions.assertEquals(0, daemon.getUpstreamCount());
+    daemon.close();
+  }
+
+  @Test
+  public void testTokenIsRequired() throws Exception {
+    TailDaemon daemon = start();
+    Subscription subscription =
+        new Subscription().setServers(List.of("http://localhost:1")).setIndex("mock*");
+    Path wrong = dir.resolve("wrong.token");
+    DaemonToken.create(wrong);
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort())) {
+      // the client refuses to send the subscription to a daemon with another token
+      Assertions.assertThrows(
+          IOException.class, () -> TailDaemon.open(socket, wrong, subscription));
+    }
+    // a client without the token is rejected
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort())) {
+      socket.setSoTimeout(5000);
+      PrintStream out = new PrintStream(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+      BufferedReader in =
+          new BufferedReader(
+              new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+      out.println(new JSONObject().put("nonce", DaemonToken.nonce()));
+      in.readLine();
+      out.println(subscription.toJson().put("proof", "00"));
+      Assertions.assertTrue(new JSONObject(in.readLine()).has("error"));
+    }
+    Assertions.assertEquals(0, daemon.getUpstreamCount());
+    daemon.close();
+  }
+
+  @Test
+  public void testImpostorIsNotSentSubscription() throws Exception {
+    Path token = dir.resolve("daemon.token");
+    DaemonToken.create(token);
+    // a process listening on the port that does not know the token
+    try (ServerSocket impostor = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), impostor.getLocalPort())) {
+      Socket accepted = impostor.accept();
+      PrintStream out = new PrintStream(accepted.getOutputStream(), true, StandardCharsets.UTF_8);
+      out.println(new JSONObject().put("nonce", DaemonToken.nonce()).put("proof", "00"));
+      Subscription subscription =
+          new Subscription()
+              .setServers(List.of("http://localhost:1"))
+              .setIndex("mock*")
+              .setUser("user")
+              .setPassword("secret");
+      Assertions.assertThrows(
+          IOException.class, () -> TailDaemon.open(socket, token, subscription));
+      socket.close();
+      accepted.setSoTimeout(1000);
+      BufferedReader in =
+          new BufferedReader(
+              new InputStreamReader(accepted.getInputStream(), StandardCharsets.UTF_8));
+      Assertions.assertFalse(in.readLine().contains("secret"));
+      Assertions.assertNull(in.readLine());
+    }
+  }
+}
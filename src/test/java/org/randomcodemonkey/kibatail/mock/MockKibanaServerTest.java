@@ -0,0 +1,73 @@
+package org.randomcodemonkey.kibatail.mock;
+
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.randomcodemonkey.kibatail.client.KibaHttpClient;
+import org.randomcodemonkey.kibatail.response.LogResponse;
+import org.randomcodemonkey.kibatail.response.LogRow;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class MockKibanaServerTest {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MockKibanaServerTest.class);
+
+  @Test
+  public void testReplay() throws Exception {
+    String recorded =
+        "{\"_shards\":{\"failed\":0},\"hits\":{\"total\":2,\"hits\":["
+            + "{\"_id\":\"b\",\"_source\":"
+            + "{\"@timestamp\":\"2099-01-01T00:00:02Z\",\"message\":\"second\"}},"
+            + "{\"_id\":\"a\",\"_source\":"
+            + "{\"@timestamp\":\"2099-01-01T00:00:01Z\",\"message\":\"first\"}}"
+            + "]}}";
+    try (MockKibanaServer server = MockKibanaServer.replaying(List.of(recorded)).start()) {
+      KibaHttpClient client = new KibaHttpClient(server.getUri(), "logs*", 60);
+      LogResponse response = client.executeRequest();
+      Assertions.assertEquals(200, response.getStatusCode());
+      List<LogRow> rows = List.copyOf(response.getRows());
+      Assertions.assertEquals(2, rows.size());
+      Assertions.assertEquals("first", rows.get(0).getField("message"));
+      Assertions.assertEquals("second", rows.get(1).getField("message"));
+      Assertions.assertEquals(1, server.getRequests());
+    }
+  }
+
+  @Test
+  public void testTailIsLossless() throws Exception {
+    LoadHarness.Report report =
+        new LoadHarness()
+            .setRate(500)
+            .setDuration(2)
+            .setIngestLag(100)
+            .setPollInterval(200)
+            .run();
+    LOGGER.info("Load harness report:\n{}", report);
+    Assertions.assertEquals(1000, report.getGenerated());
+    Assertions.assertEquals(0, report.getLost());
+    Assertions.assertEquals(0, report.getDuplicates());
+    Assertions.assertEquals(1000, report.getReceived());
+  }
+
+  @Test
+  public void testTailIsLosslessWithSharedTimestamps() throws Exception {
+    // two rows per millisecond, so rows at the end of a request share its last timestamp. The
+    // page is large enough for a poll interval of rows, only rows sharing a timestamp can be lost
+    LoadHarness.Report report =
+        new LoadHarness()
+            .setRate(2000)
+            .setDuration(2)
+            .setIngestLag(100)
+            .setPollInterval(200)
+            .setPageSize(2000)
+            .setTimestampPrecision(ChronoUnit.MILLIS)
+            .run();
+    LOGGER.info("Load harness report:\n{}", report);
+    Assertions.assertEquals(4000, report.getGenerated());
+    Assertions.assertEquals(0, report.getLost());
+    Assertions.assertEquals(0, report.getDuplicates());
+    Assertions.assertEquals(4000, report.getReceived());
+  }
+}
@@ -0,0 +1,78 @@
+package org.randomcodemonkey.kibatail.response;
+
+import java.util.List;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class LogRowTest {
+
+  private static JSONObject hit(String id, String level, String message) {
+    return new JSONObject()
+        .put("_id", id)
+        .put(
+            "_source",
+            new JSONObject()
+                .put("@timestamp", "2022-05-01T10:00:00.123Z")
+                .put("log_level", new String(level))
+                .put("message", message)
+                .put("unused", "dropped")
+                .put(
+                    "kubernetes",
+                    new JSONObject().put("container", new JSONObject().put("name", "app")))
+                .put("flat.key", "flat"));
+  }
+
+  @Test
+  public void testOnlySchemaFieldsAreKept() {
+    RowSchema schema =
+        new RowSchema(List.of("log_level", "message", "kubernetes.container.name", "flat.key"));
+    LogRow row = new LogRow(hit("1", "INFO", "hello"), schema);
+
+    Assertions.assertEquals("1", row.getId());
+    Assertions.assertEquals("INFO", row.getField("log_level"));
+    Assertions.assertEquals("hello", row.getField("message"));
+    Assertions.assertEquals("app", row.getField("kubernetes.container.name"));
+    Assertions.assertEquals("flat", row.getField("flat.key"));
+    Assertions.assertNull(row.getField("unused"));
+    Assertions.assertNull(row.getField("missing"));
+  }
+
+  @Test
+  public void testRepeatedValuesAreShared() {
+    RowSchema schema = RowSchema.parse("log_level,message");
+    LogRow first = new LogRow(hit("1", "WARN", "first"), schema);
+    LogRow second = new LogRow(hit("2", "WARN", "second"), schema);
+
+    Assertions.assertSame(first.getField("log_level"), second.getField("log_level"));
+  }
+
+  @Test
+  public void testInternerIsBounded() {
+    StringInterner interner = new StringInterner(2, 8);
+    Assertions.assertSame(
+        interner.intern("level", new String("a")), interner.intern("level", new String("a")));
+    interner.intern("level", "b");
+    Assertions.assertEquals(2, interner.size());
+    String longValue = "longer than eight";
+    Assertions.assertSame(longValue, interner.intern("level", longValue));
+    Assertions.assertEquals(2, interner.size());
+    Assertions.assertFalse(interner.isHighCardinality("level"));
+  }
+
+  @Test
+  public void testHighCardinalityFieldDoesNotCrowdOutOthers() {
+    StringInterner interner = new StringInterner(2, 8);
+    for (int i = 0; i < 10; i++) {
+      interner.intern("message", "msg " + i);
+    }
+    Assertions.assertTrue(interner.isHighCardinality("message"));
+    Assertions.assertEquals(0, interner.size());
+    String c = new String("c");
+    Assertions.assertSame(c, interner.intern("message", c));
+    Assertions.assertNotSame(c, interner.intern("message", new String("c")));
+    // values of other fields seen later are still deduplicated
+    Assertions.assertSame(
+        interner.intern("level", new String("WARN")), interner.intern("level", new String("WARN")));
+  }
+}
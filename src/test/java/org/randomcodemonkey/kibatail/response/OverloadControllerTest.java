@@ -0,0 +1,95 @@
+package org.randomcodemonkey.kibatail.response;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.randomcodemonkey.kibatail.response.OverloadController.Mode;
+
+public class OverloadControllerTest {
+
+  private static final RowSchema SCHEMA = RowSchema.parse("log_level,message");
+
+  private static List<LogRow> rows(int count, String level) {
+    List<LogRow> rows = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      rows.add(
+          new LogRow(
+              new JSONObject()
+                  .put("_id", "id-" + i)
+                  .put(
+                      "_source",
+                      new JSONObject()
+                          .put("@timestamp", "2022-05-01T10:00:00.123Z")
+                          .put("log_level", level)
+                          .put("message", "row " + i)),
+              SCHEMA));
+    }
+    return rows;
+  }
+
+  @Test
+  public void testSampleMode() throws InterruptedException {
+    OverloadController overload = new OverloadController(Mode.SAMPLE, 10, 1 << 20);
+    overload.setSampleRate(0.5);
+    overload.offer(rows(20, "INFO"));
+    Assertions.assertEquals(15, overload.size());
+    Assertions.assertEquals(5, overload.getShed());
+    overload.offer(rows(20, "INFO"));
+    // never more than twice the budget
+    Assertions.assertEquals(20, overload.size());
+    Assertions.assertEquals(20, overload.getShed());
+  }
+
+  @Test
+  public void testSeverityMode() throws InterruptedException {
+    OverloadController overload = new OverloadController(Mode.SEVERITY, 5, 1 << 20);
+    overload.offer(rows(5, "INFO"));
+    overload.offer(rows(5, "info"));
+    overload.offer(rows(3, "error"));
+    Assertions.assertEquals(8, overload.size());
+    Assertions.assertEquals(5, overload.getShed());
+    Assertions.assertEquals(List.of("log_level"), overload.getFields());
+  }
+
+  @Test
+  public void testByteBudget() throws InterruptedException {
+    List<LogRow> rows = rows(10, "INFO");
+    OverloadController overload =
+        new OverloadController(Mode.SEVERITY, 100, 3L * rows.get(0).estimateSize());
+    overload.offer(rows);
+    Assertions.assertEquals(3, overload.size());
+    Assertions.assertEquals(7, overload.getShed());
+    Assertions.assertTrue(overload.getShedBytes() > 0);
+  }
+
+  @Test
+  public void testBlockMode() throws Exception {
+    OverloadController overload = new OverloadController(Mode.BLOCK, 5, 1 << 20);
+    Thread producer =
+        new Thread(
+            () -> {
+              try {
+                overload.offer(rows(12, "INFO"));
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            });
+    producer.start();
+
+    List<LogRow> taken = new ArrayList<>();
+    while (taken.size() < 12) {
+      Assertions.assertTrue(overload.size() <= 5);
+      taken.addAll(overload.take(2, 5, TimeUnit.SECONDS));
+    }
+    producer.join(5000);
+    Assertions.assertFalse(producer.isAlive());
+    Assertions.assertEquals(0, overload.getShed());
+    Assertions.assertEquals(12, overload.getAccepted());
+    Assertions.assertEquals("row 0", taken.get(0).getField("message"));
+    Assertions.assertEquals("row 11", taken.get(11).getField("message"));
+    Assertions.assertTrue(overload.take(1, 10, TimeUnit.MILLISECONDS).isEmpty());
+  }
+}
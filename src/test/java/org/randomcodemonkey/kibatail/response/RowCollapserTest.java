@@ -0,0 +1,112 @@
+package org.randomcodemonkey.kibatail.response;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.List;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class RowCollapserTest {
+
+  private static final RowSchema SCHEMA = RowSchema.parse("message,stack_trace");
+
+  private static LogRow row(String message, String stackTrace) {
+    return new LogRow(
+        new JSONObject()
+            .put("_id", "1")
+            .put(
+                "_source",
+                new JSONObject()
+                    .put("@timestamp", "2022-05-01T10:00:00.123Z")
+                    .put("message", message)
+                    .putOpt("stack_trace", stackTrace)),
+        SCHEMA);
+  }
+
+  @Test
+  public void testNormalizedFingerprint() {
+    RowCollapser collapser =
+        new RowCollapser(List.of("message", "stack_trace"), Duration.ofSeconds(10));
+    long a =
+        collapser.fingerprint(
+            row(
+                "Request 1234 failed for 3f2a9c1e-4b7d-4e21-9a0b-1c2d3e4f5a6b",
+                "at Foo.bar(Foo.java:12)"));
+    long b =
+        collapser.fingerprint(
+            row(
+                "Request 98 failed for 0a1b2c3d-0000-4000-8000-abcdefabcdef",
+                "at Foo.bar(Foo.java:47)"));
+    long c = collapser.fingerprint(row("Request 98 succeeded", "at Foo.bar(Foo.java:47)"));
+    long d = collapser.fingerprint(row("Request 98 failed for x", "at Foo.baz(Foo.java:47)"));
+    Assertions.assertEquals(a, b);
+    Assertions.assertNotEquals(a, c);
+    Assertions.assertNotEquals(a, d);
+  }
+
+  @Test
+  public void testRepeatsAreSummarized() {
+    MutableClock clock = new MutableClock();
+    RowCollapser collapser =
+        new RowCollapser(List.of("message"), Duration.ofSeconds(10), 16, clock);
+    StringBuilder out = new StringBuilder();
+
+    Assertions.assertTrue(collapser.accept(row("hello 1", null), "hello 1", out));
+    for (int i = 2; i <= 5; i++) {
+      Assertions.assertFalse(collapser.accept(row("hello " + i, null), "hello " + i, out));
+    }
+    Assertions.assertTrue(collapser.accept(row("other", null), "other", out));
+    collapser.flush(out);
+    Assertions.assertEquals("", out.toString());
+
+    clock.now += 10_000;
+    collapser.flush(out);
+    Assertions.assertEquals("2022-05-01T10:00:00.123Z x4 hello 1\n", out.toString());
+
+    out.setLength(0);
+    Assertions.assertTrue(collapser.accept(row("hello 6", null), "hello 6", out));
+    Assertions.assertFalse(collapser.accept(row("hello 7", null), "hello 7", out));
+    // pending repeats are summarized when the output ends, even within the window
+    collapser.flushAll(out);
+    Assertions.assertEquals("2022-05-01T10:00:00.123Z x1 hello 6\n", out.toString());
+  }
+
+  @Test
+  public void testEvictedRepeatsAreSummarized() {
+    RowCollapser collapser =
+        new RowCollapser(List.of("message"), Duration.ofSeconds(10), 1, new MutableClock());
+    StringBuilder out = new StringBuilder();
+    collapser.accept(row("first", null), "first", out);
+    collapser.accept(row("first", null), "first", out);
+    collapser.accept(row("second", null), "second", out);
+    Assertions.assertEquals("2022-05-01T10:00:00.123Z x1 first\n", out.toString());
+  }
+
+  private static class MutableClock extends Clock {
+
+    private long now = 0;
+
+    @Override
+    public long millis() {
+      return now;
+    }
+
+    @Override
+    public Instant instant() {
+      return Instant.ofEpochMilli(now);
+    }
+
+    @Override
+    public ZoneOffset getZone() {
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(java.time.ZoneId zone) {
+      return this;
+    }
+  }
+}